@@ -0,0 +1,149 @@
+package io.github.codeed.dbupgrader.benchmarks;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.apache.commons.io.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.jar.*;
+import java.util.stream.*;
+
+/**
+ * Scanning an upgrade package of many classes laid out in a directory or in a jar, spread over sub packages.
+ * The classes are generated into a temp directory and loaded by their own class loader, so {@code getClasses} is measured as
+ * visiting the class files and loading each class, and {@code visitClassFiles} as the scan alone.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ReflectionUtilsBenchmark {
+    private static final String PACKAGE = "bench.upgrades";
+    private static final int CLASSES_PER_PACKAGE = 100;
+
+    @Param({"dir", "jar"})
+    private String layout;
+
+    @Param({"100", "5000"})
+    private int classes;
+
+    private Path root;
+    private URL classpath;
+    private URL packageResource;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("dbupgrader-bench");
+        Path classDir = root.resolve("classes");
+        for (int i = 0; i < classes; i++) {
+            String className = PACKAGE + ".p" + (i / CLASSES_PER_PACKAGE) + ".V1Upgrade" + i;
+            Path file = classDir.resolve(className.replace('.', '/') + ".class");
+            Files.createDirectories(file.getParent());
+            Files.write(file, classFile(className.replace('.', '/')));
+        }
+        if ("jar".equals(layout)) {
+            Path jar = root.resolve("upgrades.jar");
+            writeJar(classDir, jar);
+            classpath = jar.toUri().toURL();
+            packageResource = new URL("jar:" + classpath + "!/" + PACKAGE.replace('.', '/'));
+        }
+        else {
+            classpath = classDir.toUri().toURL();
+            packageResource = classDir.resolve(PACKAGE.replace('.', '/')).toUri().toURL();
+        }
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public int visitClassFiles() throws Exception {
+        AtomicInteger visited = new AtomicInteger();
+        ReflectionUtils.visitClassFiles(packageResource, PACKAGE, (className, classFile) -> visited.incrementAndGet(), null);
+        return visited.get();
+    }
+
+    @Benchmark
+    public int visitClassFilesInParallel() throws Exception {
+        AtomicInteger visited = new AtomicInteger();
+        ReflectionUtils.visitClassFiles(packageResource, PACKAGE, (className, classFile) -> visited.incrementAndGet(), pool);
+        return visited.get();
+    }
+
+    /**
+     * Like {@link ReflectionUtils#getClasses(String)}, with a new class loader each time so the classes are really loaded.
+     */
+    @Benchmark
+    public List<Class<?>> getClasses() throws Exception {
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{classpath}, null)) {
+            List<Class<?>> loaded = new ArrayList<>();
+            for (URL resource : ReflectionUtils.getPackageResources(classLoader, PACKAGE)) {
+                ReflectionUtils.visitClassFiles(resource, PACKAGE, (className, classFile) ->
+                        loaded.add(Class.forName(className, false, classLoader)), null);
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * The smallest valid class file: {@code public class <name> extends Object} without members.
+     */
+    private static byte[] classFile(String internalName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            // java 8
+            out.writeShort(52);
+            out.writeShort(5);
+            out.writeByte(1);
+            out.writeUTF(internalName);
+            out.writeByte(7);
+            out.writeShort(1);
+            out.writeByte(1);
+            out.writeUTF("java/lang/Object");
+            out.writeByte(7);
+            out.writeShort(3);
+            // public super
+            out.writeShort(0x21);
+            out.writeShort(2);
+            out.writeShort(4);
+            // interfaces, fields, methods, attributes
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(0);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeJar(Path classDir, Path jar) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(classDir)) {
+            walk.sorted().forEach(files::add);
+        }
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (Path file : files) {
+                if (file.equals(classDir)) {
+                    continue;
+                }
+                String name = classDir.relativize(file).toString().replace(File.separatorChar, '/');
+                boolean directory = Files.isDirectory(file);
+                out.putNextEntry(new JarEntry(directory ? name + "/" : name));
+                if (!directory) {
+                    Files.copy(file, out);
+                }
+                out.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.codeed.dbupgrader.benchmarks;
+
+import io.github.codeed.dbupgrader.stats.*;
+import io.github.codeed.dbupgrader.utils.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * {@link SqlHelperUtils#smartInsertWithPrimaryKeySet} of one multi-row insert on an in-memory H2 in mysql mode, through a
+ * statistics connection like an upgrade. Half of the rows exist already. Each invocation is rolled back.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SmartInsertBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    private int rows;
+
+    private Connection conn;
+    private String sql;
+
+    @Setup
+    public void setUp() throws SQLException {
+        Connection raw = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID()
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        try (Statement stmt = raw.createStatement()) {
+            stmt.execute("create table students (id int primary key, name varchar(100))");
+            // the even ids exist
+            stmt.execute("insert into students select x * 2, 'existing' from system_range(1, " + rows + ")");
+        }
+        conn = StatisticsTrackingConnectionFactory.createConnection(raw, new SqlStatementRegistry(1_000));
+        conn.setAutoCommit(false);
+        StringBuilder insert = new StringBuilder("insert into students (id, name) values ");
+        for (int i = 1; i <= rows; i++) {
+            insert.append(i > 1 ? ", " : "").append("(").append(i).append(", 'name").append(i).append("')");
+        }
+        sql = insert.toString();
+    }
+
+    @TearDown(Level.Invocation)
+    public void rollback() throws SQLException {
+        conn.rollback();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Benchmark
+    public boolean smartInsert() throws SQLException {
+        return SqlHelperUtils.smartInsertWithPrimaryKeySet(conn, sql);
+    }
+}
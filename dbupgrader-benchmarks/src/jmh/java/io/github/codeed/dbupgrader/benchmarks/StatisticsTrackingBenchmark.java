@@ -0,0 +1,88 @@
+package io.github.codeed.dbupgrader.benchmarks;
+
+import io.github.codeed.dbupgrader.stats.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Overhead of the statistics wrapper per JDBC call on an in-memory H2, compared with the raw connection.
+ * {@code tracking} is a wrapped connection without shapes, {@code registry} also collects the sql shapes like an upgrade run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class StatisticsTrackingBenchmark {
+    @Param({"raw", "tracking", "registry"})
+    private String connection;
+
+    private Connection raw;
+    private Connection conn;
+    private PreparedStatement update;
+    private long id;
+
+    @Setup
+    public void setUp() throws SQLException {
+        raw = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        try (Statement stmt = raw.createStatement()) {
+            stmt.execute("create table bench (id bigint primary key, name varchar(100))");
+            stmt.execute("insert into bench select x, 'name' || x from system_range(1, 1000)");
+        }
+        if ("tracking".equals(connection)) {
+            conn = StatisticsTrackingConnectionFactory.createConnection(raw);
+        }
+        else if ("registry".equals(connection)) {
+            conn = StatisticsTrackingConnectionFactory.createConnection(raw, new SqlStatementRegistry(1_000));
+        }
+        else {
+            conn = raw;
+        }
+        update = conn.prepareStatement("update bench set name = ? where id = ?");
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        update.close();
+        raw.close();
+    }
+
+    /**
+     * Prepare, bind, execute and close, like {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils#query}
+     */
+    @Benchmark
+    public String prepareAndQuery() throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("select name from bench where id = ?")) {
+            ps.setLong(1, nextId());
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Execute a prepared statement again, like {@link io.github.codeed.dbupgrader.utils.BatchWriter}
+     */
+    @Benchmark
+    public int reusedUpdate() throws SQLException {
+        update.setString(1, "updated");
+        update.setLong(2, nextId());
+        return update.executeUpdate();
+    }
+
+    /**
+     * A plain statement, the sql is classified on each call
+     */
+    @Benchmark
+    public boolean plainStatement() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            return stmt.execute("update bench set name = 'plain' where id = " + nextId());
+        }
+    }
+
+    private long nextId() {
+        id = id % 1000 + 1;
+        return id;
+    }
+}
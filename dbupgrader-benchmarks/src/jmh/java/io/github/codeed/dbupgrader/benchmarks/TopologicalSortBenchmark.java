@@ -0,0 +1,48 @@
+package io.github.codeed.dbupgrader.benchmarks;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Planning of one version with many upgrade classes. About half of the classes run after another class of the version, like
+ * {@code @DbUpgrade(after = ...)} which allows only one dependency.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TopologicalSortBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    private int nodes;
+
+    private Map<String, Set<String>> graph;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        graph = new HashMap<>();
+        for (int i = 0; i < nodes; i++) {
+            Set<String> dependencies = new HashSet<>();
+            if (i > 0 && random.nextBoolean()) {
+                dependencies.add(node(random.nextInt(i)));
+            }
+            graph.put(node(i), dependencies);
+        }
+    }
+
+    @Benchmark
+    public List<String> sort() {
+        return TopologicalSort.sort(graph);
+    }
+
+    @Benchmark
+    public List<List<String>> levels() {
+        return TopologicalSort.levels(graph);
+    }
+
+    private static String node(int index) {
+        return "com.example.upgrades.V1Upgrade" + index;
+    }
+}
@@ -157,7 +157,24 @@ public class DbUpgraderAutoConfiguration {
                         .upgradeHistoryTable(config.getUpgradeHistoryTable())
                         .upgradeConfigurationTable(config.getUpgradeConfigurationTable())
                         .dryRun(config.isDryRun())
-                        .potentialMissVersionCount(config.getPotentialMissVersionCount());
+                        .rehearsal(config.isRehearsal())
+                        .rehearsalExplain(config.isRehearsalExplain())
+                        .potentialMissVersionCount(config.getPotentialMissVersionCount())
+                        .parallelUpgrade(config.isParallelUpgrade())
+                        .parallelism(config.getParallelism())
+                        .asyncPoolSize(config.getAsyncPoolSize())
+                        .asyncVirtualThreads(config.isAsyncVirtualThreads())
+                        .skipIfUpToDate(config.isSkipIfUpToDate())
+                        .scanMode(config.getScanMode())
+                        .clusterLock(config.isClusterLock())
+                        .lockLeaseMillis(config.getLockLeaseMillis())
+                        .lockWaitTimeoutMillis(config.getLockWaitTimeoutMillis())
+                        .slowSqlThresholdMillis(config.getSlowSqlThresholdMillis())
+                        .schemaSnapshot(config.isSchemaSnapshot())
+                        .coalesceDdl(config.isCoalesceDdl())
+                        .ddlLockWaitTimeoutSeconds(config.getDdlLockWaitTimeoutSeconds())
+                        .ddlRetryBudgetMillis(config.getDdlRetryBudgetMillis())
+                        .ddlReportBlockers(config.isDdlReportBlockers());
         if (config.getSkipClasses() != null && !config.getSkipClasses().isEmpty()) {
             config.getSkipClasses().forEach(builder::addSkipClass);
         }
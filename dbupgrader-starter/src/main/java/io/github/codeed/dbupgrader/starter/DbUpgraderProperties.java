@@ -1,5 +1,6 @@
 package io.github.codeed.dbupgrader.starter;
 
+import io.github.codeed.dbupgrader.*;
 import lombok.*;
 import org.springframework.boot.context.properties.*;
 
@@ -48,11 +49,97 @@ public class DbUpgraderProperties {
          */
         private boolean dryRun = false;
 
+        /**
+         * Run the upgrade classes in a transaction which is always rolled back, and report each statement
+         */
+        private boolean rehearsal = false;
+
+        /**
+         * Record the EXPLAIN of each sql shape in a rehearsal
+         */
+        private boolean rehearsalExplain = false;
+
         /**
          * In case of missed upgrade process, recheck recent version records
          */
         private int potentialMissVersionCount = 10;
 
+        /**
+         * Run independent upgrade classes of same version at the same time, each branch commits in its own transaction
+         */
+        private boolean parallelUpgrade = false;
+
+        /**
+         * Max threads and connections used by parallel upgrade, besides the session connection
+         */
+        private int parallelism = 4;
+
+        /**
+         * Max async upgrades running at the same time
+         */
+        private int asyncPoolSize = 1;
+
+        /**
+         * Use virtual threads for async upgrades when running on java 21+.
+         * Virtual threads are daemon threads, the JVM doesn't wait for the async upgrades in progress when it exits.
+         */
+        private boolean asyncVirtualThreads;
+
+        /**
+         * Skip scanning when the database is already at the target version and upgrade classes are not changed
+         */
+        private boolean skipIfUpToDate;
+
+        /**
+         * How to find upgrade classes without build time index: REFLECTION or CLASS_FILE
+         */
+        private UpgradeConfiguration.ScanMode scanMode = UpgradeConfiguration.ScanMode.REFLECTION;
+
+        /**
+         * Only one node of the cluster runs the upgrades at a time, the others wait for the lock
+         */
+        private boolean clusterLock = false;
+
+        /**
+         * Lease of the cluster lock, it's taken over by another node if the holder doesn't renew it in time
+         */
+        private long lockLeaseMillis = 60_000;
+
+        /**
+         * Max time to wait for the cluster lock
+         */
+        private long lockWaitTimeoutMillis = 30 * 60_000;
+
+        /**
+         * Statements slower than this are logged with the upgrade class running them, <=0 means never
+         */
+        private long slowSqlThresholdMillis = 1_000;
+
+        /**
+         * Load the tables, columns and indexes once and answer the existence checks from memory
+         */
+        private boolean schemaSnapshot = false;
+
+        /**
+         * Add the columns of smartAddColumn by one ALTER per table at the end of each version
+         */
+        private boolean coalesceDdl = false;
+
+        /**
+         * mysql session lock_wait_timeout of the DDL, retried with backoff when it times out. <=0 means off
+         */
+        private int ddlLockWaitTimeoutSeconds = 0;
+
+        /**
+         * Total time to retry a DDL which timed out waiting for the metadata lock
+         */
+        private long ddlRetryBudgetMillis = 10 * 60_000;
+
+        /**
+         * Log the sessions which may block the DDL when it times out
+         */
+        private boolean ddlReportBlockers = false;
+
         /**
          * Target version for this specific datasource. It can be set in external configurer.
          * {@link DbUpgraderConfigurer#configureUpgradeProperties(String, DataSource, DataSourceConfig)}
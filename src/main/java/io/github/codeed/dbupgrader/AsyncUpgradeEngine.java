@@ -0,0 +1,76 @@
+package io.github.codeed.dbupgrader;
+
+import com.google.common.util.concurrent.*;
+import lombok.extern.java.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the async upgrades of one {@link DbUpgrader#upgrade()} run on a bounded pool.
+ * Virtual threads are used when running on java 21+ and {@link UpgradeConfiguration#isAsyncVirtualThreads()} is true.
+ * The pool stops accepting new upgrades after {@link #shutdown()}, and its threads exit once the submitted upgrades finished.
+ * The JVM waits for the upgrades in progress on platform threads, but not on virtual threads, which are daemon threads.
+ */
+@Log
+class AsyncUpgradeEngine {
+    private final ThreadPoolExecutor executor;
+    private final Map<String, CompletableFuture<Void>> futures = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    AsyncUpgradeEngine(String name, UpgradeConfiguration upgradeConfiguration) {
+        String threadPrefix = "dbupgrader-" + name + "-async-";
+        ThreadFactory threadFactory = upgradeConfiguration.isAsyncVirtualThreads() ? virtualThreadFactory(threadPrefix) : null;
+        if (threadFactory == null) {
+            threadFactory = new ThreadFactoryBuilder().setNameFormat(threadPrefix + "%d").build();
+        }
+        int poolSize = upgradeConfiguration.getAsyncPoolSize();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    CompletableFuture<Void> submit(String className, Callable<Void> upgrade) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        futures.put(className, future);
+        executor.execute(() -> {
+            try {
+                upgrade.call();
+                future.complete(null);
+            }
+            catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    boolean hasSubmitted() {
+        return !futures.isEmpty();
+    }
+
+    /**
+     * Stop accepting new upgrades. The submitted upgrades keep running.
+     */
+    AsyncUpgradeHandle shutdown() {
+        executor.shutdown();
+        synchronized (futures) {
+            return new AsyncUpgradeHandle(new LinkedHashMap<>(futures));
+        }
+    }
+
+    /**
+     * Thread.ofVirtual() only exists since java 21, while this library is built for java 8.
+     * @return null if virtual threads are not supported
+     */
+    private static ThreadFactory virtualThreadFactory(String threadPrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, threadPrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            log.fine("Virtual threads are not available, use platform threads for async upgrades");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.github.codeed.dbupgrader;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tracks the async upgrades ({@link DbUpgrade.ExecutionMode#ASYNC_LOG_IF_FAIL}, {@link DbUpgrade.ExecutionMode#ASYNC_EXIT_IF_FAIL})
+ * submitted by one {@link DbUpgrader#upgrade()} run.
+ * eg: a readiness probe can check {@link #isDone()} or wait with {@link #await(long, TimeUnit)}.
+ */
+public class AsyncUpgradeHandle {
+    private final Map<String, CompletableFuture<Void>> futures;
+
+    AsyncUpgradeHandle(Map<String, CompletableFuture<Void>> futures) {
+        this.futures = Collections.unmodifiableMap(futures);
+    }
+
+    static AsyncUpgradeHandle empty() {
+        return new AsyncUpgradeHandle(Collections.emptyMap());
+    }
+
+    /**
+     * @return the future of each async upgrade, key is the full class name
+     */
+    public Map<String, CompletableFuture<Void>> getFutures() {
+        return futures;
+    }
+
+    /**
+     * @return true if all async upgrades finished, no matter succeeded or failed
+     */
+    public boolean isDone() {
+        return futures.values().stream().allMatch(CompletableFuture::isDone);
+    }
+
+    /**
+     * Wait until all async upgrades finished, no matter succeeded or failed.
+     */
+    public void await() throws InterruptedException {
+        try {
+            allFinished().get();
+        }
+        catch (ExecutionException e) {
+            // failures are reported by getFailures
+        }
+    }
+
+    /**
+     * @return true if all async upgrades finished in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            allFinished().get(timeout, unit);
+            return true;
+        }
+        catch (ExecutionException e) {
+            return true;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the failed async upgrades so far, key is the full class name
+     */
+    public Map<String, Throwable> getFailures() {
+        Map<String, Throwable> failures = new LinkedHashMap<>();
+        futures.forEach((className, future) -> {
+            if (future.isCompletedExceptionally()) {
+                try {
+                    future.join();
+                }
+                catch (CompletionException | CancellationException e) {
+                    failures.put(className, e.getCause() != null ? e.getCause() : e);
+                }
+            }
+        });
+        return failures;
+    }
+
+    private CompletableFuture<Void> allFinished() {
+        return CompletableFuture.allOf(futures.values().stream()
+                .map(f -> f.handle((r, e) -> null))
+                .toArray(CompletableFuture[]::new));
+    }
+}
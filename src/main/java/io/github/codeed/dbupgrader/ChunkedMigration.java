@@ -0,0 +1,250 @@
+package io.github.codeed.dbupgrader;
+
+import com.google.common.base.*;
+import io.github.codeed.dbupgrader.stats.*;
+import io.github.codeed.dbupgrader.utils.*;
+import lombok.extern.java.*;
+
+import javax.sql.*;
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * Migrates a large table chunk by chunk, walking its numeric key in ascending order (keyset pagination), so each chunk is a short
+ * transaction instead of one huge transaction in the version.
+ * <p>
+ * Each chunk runs on its own connection and commits together with a checkpoint (the last key of the chunk) in the configuration
+ * table. A restarted node continues after the checkpoint, so the handler only needs to be idempotent for the chunk which was running
+ * when the node died. The chunk size is adapted to {@link Builder#targetChunkMillis(long)} by the measured latency of each chunk.
+ * <p>
+ * The chunks are committed even if the version fails later, put the migration in its own upgrade class, eg: an async one.
+ * <pre>{@code
+ * migrator.chunkedMigration("backfill_user_email")
+ *         .table("user").keyColumn("id")
+ *         .build()
+ *         .run((conn, fromExclusive, toInclusive) -> SqlHelperUtils.executeUpdate(conn,
+ *                 "update user set email = lower(email) where id > ? and id <= ?", fromExclusive, toInclusive));
+ * }</pre>
+ */
+@Log
+public class ChunkedMigration {
+    public static final String CONFIG_CHUNK_CHECKPOINT = "chunk_checkpoint";
+
+    private final DataSource dataSource;
+    private final String configurationTable;
+    private final String checkpointKey;
+    private String table;
+    private String keyColumn = "id";
+    private int chunkSize = 1_000;
+    private int minChunkSize = 100;
+    private int maxChunkSize = 50_000;
+    private long targetChunkMillis = 500;
+    private long pauseMillis = 0;
+    /**
+     * the upgrade connection, the chunks are reported to its sql statistics
+     */
+    private Connection statisticsFrom;
+
+    private ChunkedMigration(DataSource dataSource, UpgradeConfiguration upgradeConfiguration, String name) {
+        this.dataSource = dataSource;
+        this.configurationTable = upgradeConfiguration.getUpgradeConfigurationTable();
+        this.checkpointKey = CONFIG_CHUNK_CHECKPOINT + "-" + upgradeConfiguration.getApplication() + "-" + name;
+    }
+
+    static Builder builder(DataSource dataSource, UpgradeConfiguration upgradeConfiguration, String name) {
+        return new Builder(new ChunkedMigration(dataSource, upgradeConfiguration, name));
+    }
+
+    @FunctionalInterface
+    public interface ChunkHandler {
+        /**
+         * Migrate the rows whose key is in (fromExclusive, toInclusive]. Don't commit, the chunk is committed with its checkpoint.
+         */
+        void migrate(Connection conn, long fromExclusive, long toInclusive) throws SQLException;
+    }
+
+    /**
+     * Run the chunks from the checkpoint (or the smallest key) to the largest key of the table.
+     *
+     * @return the number of chunks run
+     */
+    public long run(ChunkHandler handler) throws SQLException, InterruptedException {
+        Connection conn = StatisticsTrackingConnectionFactory.createConnectionLike(dataSource.getConnection(), statisticsFrom);
+        try {
+            conn.setAutoCommit(false);
+            Long checkpoint = readCheckpoint(conn);
+            long from = checkpoint == null ? Long.MIN_VALUE : checkpoint;
+            if (checkpoint != null) {
+                log.info("Resume chunked migration " + checkpointKey + " after key " + checkpoint);
+            }
+            int size = chunkSize;
+            long chunks = 0;
+            long start = System.nanoTime();
+            while (true) {
+                Long to = findChunkEnd(conn, from, size);
+                if (to == null) {
+                    break;
+                }
+                long chunkStart = System.nanoTime();
+                try {
+                    handler.migrate(conn, from, to);
+                    writeCheckpoint(conn, to);
+                    conn.commit();
+                }
+                catch (SQLException | RuntimeException e) {
+                    SqlHelperUtils.rollbackQuietly(conn);
+                    log.severe("Chunked migration " + checkpointKey + " failed in keys (" + from + ", " + to + "], it will resume after " +
+                            "key " + from);
+                    throw e;
+                }
+                chunks++;
+                from = to;
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - chunkStart);
+                size = nextChunkSize(size, elapsedMillis);
+                log.fine("Chunked migration " + checkpointKey + " migrated keys up to " + to + " in " + elapsedMillis + "ms, next chunk " +
+                        "size: " + size);
+                if (pauseMillis > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+            log.info("Chunked migration " + checkpointKey + " finished " + chunks + " chunks in " +
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            return chunks;
+        }
+        finally {
+            SqlHelperUtils.closeQuietly(conn);
+        }
+    }
+
+    /**
+     * Forget the checkpoint, so the next run starts from the smallest key again.
+     */
+    public void clearCheckpoint() throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            conn.setAutoCommit(true);
+            SqlHelperUtils.executeUpdate(conn, "delete from " + configurationTable + " where key_name = ?", checkpointKey);
+        }
+        finally {
+            SqlHelperUtils.closeQuietly(conn);
+        }
+    }
+
+    /**
+     * Grow or shrink the chunk toward the target latency, by at most 2x per chunk so one slow chunk doesn't collapse it.
+     */
+    int nextChunkSize(int size, long elapsedMillis) {
+        double ratio = (double) targetChunkMillis / Math.max(elapsedMillis, 1);
+        ratio = Math.max(0.5, Math.min(2, ratio));
+        return (int) Math.max(minChunkSize, Math.min(maxChunkSize, size * ratio));
+    }
+
+    /**
+     * @return the key of the last row of the chunk, null if no row is left
+     */
+    private Long findChunkEnd(Connection conn, long from, int size) throws SQLException {
+        // the index on the key makes both queries range scans
+        Long end = SqlHelperUtils.query(conn, "select " + keyColumn + " from " + table + " where " + keyColumn + " > ? order by " +
+                keyColumn + " limit 1 offset ?", rs -> rs.getLong(1), from, size - 1);
+        if (end == null) {
+            // the last chunk is smaller than the chunk size
+            end = SqlHelperUtils.query(conn, "select max(" + keyColumn + ") from " + table + " where " + keyColumn + " > ?", rs -> {
+                long max = rs.getLong(1);
+                return rs.wasNull() ? null : max;
+            }, from);
+        }
+        return end;
+    }
+
+    private Long readCheckpoint(Connection conn) throws SQLException {
+        String value = SqlHelperUtils.query(conn, "select value from " + configurationTable + " where key_name = ?", rs -> rs.getString(1),
+                checkpointKey);
+        conn.commit();
+        return value == null ? null : Long.valueOf(value);
+    }
+
+    private void writeCheckpoint(Connection conn, long key) throws SQLException {
+        int updated = SqlHelperUtils.executeUpdate(conn, "update " + configurationTable + " set value = ? where key_name = ?",
+                String.valueOf(key), checkpointKey);
+        if (updated == 0) {
+            SqlHelperUtils.executeUpdate(conn, "insert into " + configurationTable + "(key_name, value) values (?, ?)", checkpointKey,
+                    String.valueOf(key));
+        }
+    }
+
+    public static class Builder {
+        private final ChunkedMigration migration;
+
+        private Builder(ChunkedMigration migration) {
+            this.migration = migration;
+        }
+
+        public Builder table(String table) {
+            migration.table = table;
+            return this;
+        }
+
+        /**
+         * A unique numeric column with an index, usually the primary key
+         */
+        public Builder keyColumn(String keyColumn) {
+            migration.keyColumn = keyColumn;
+            return this;
+        }
+
+        /**
+         * Rows of the first chunk, it's adapted to the target latency later
+         */
+        public Builder chunkSize(int chunkSize) {
+            migration.chunkSize = chunkSize;
+            return this;
+        }
+
+        public Builder minChunkSize(int minChunkSize) {
+            migration.minChunkSize = minChunkSize;
+            return this;
+        }
+
+        public Builder maxChunkSize(int maxChunkSize) {
+            migration.maxChunkSize = maxChunkSize;
+            return this;
+        }
+
+        /**
+         * Expected time of one chunk, including its commit. The shorter, the shorter the rows are locked
+         */
+        public Builder targetChunkMillis(long targetChunkMillis) {
+            migration.targetChunkMillis = targetChunkMillis;
+            return this;
+        }
+
+        /**
+         * Sleep between chunks to leave room for the online traffic and the replicas
+         */
+        public Builder pauseMillis(long pauseMillis) {
+            migration.pauseMillis = pauseMillis;
+            return this;
+        }
+
+        /**
+         * Report the sql of the chunks to the statistics of the upgrade run (see {@link UpgradeReport#getSqlStatements()}) with the
+         * upgrade class of the connection. The affected rows don't count for the maxAffectRecords of the class.
+         */
+        public Builder statisticsFrom(Connection upgradeConnection) {
+            migration.statisticsFrom = upgradeConnection;
+            return this;
+        }
+
+        public ChunkedMigration build() {
+            Preconditions.checkArgument(migration.table != null && !migration.table.isEmpty(), "table must be set");
+            Preconditions.checkArgument(migration.keyColumn != null && !migration.keyColumn.isEmpty(), "keyColumn must be set");
+            Preconditions.checkArgument(migration.minChunkSize > 0, "minChunkSize must be > 0");
+            Preconditions.checkArgument(migration.maxChunkSize >= migration.minChunkSize, "maxChunkSize must be >= minChunkSize");
+            Preconditions.checkArgument(migration.chunkSize >= migration.minChunkSize && migration.chunkSize <= migration.maxChunkSize,
+                    "chunkSize must be between minChunkSize and maxChunkSize");
+            Preconditions.checkArgument(migration.targetChunkMillis > 0, "targetChunkMillis must be > 0");
+            Preconditions.checkArgument(migration.pauseMillis >= 0, "pauseMillis must be >= 0");
+            return migration;
+        }
+    }
+}
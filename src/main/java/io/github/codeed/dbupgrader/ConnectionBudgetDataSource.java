@@ -0,0 +1,107 @@
+package io.github.codeed.dbupgrader;
+
+import javax.sql.*;
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Limits the connections of one tenant of {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)} which are open at the same
+ * time, so many tenants on the same database server don't exhaust its connections.
+ * {@link #getConnection()} waits until a connection of the tenant is closed, at most {@code timeoutMillis}. Every connection of
+ * the run counts: the session, the cluster lock, the parallel branches, the async upgrades and the helpers like
+ * {@link ChunkedMigration} and {@link OnlineSchemaChange} which take their own connection while the session is open.
+ */
+class ConnectionBudgetDataSource implements DataSource {
+    private final DataSource target;
+    private final int budget;
+    private final long timeoutMillis;
+    private final Semaphore permits;
+
+    ConnectionBudgetDataSource(DataSource target, int budget, long timeoutMillis) {
+        this.target = target;
+        this.budget = budget;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(budget, true);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        acquire();
+        try {
+            return new BudgetConnection(target.getConnection(), permits);
+        }
+        catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        acquire();
+        try {
+            return new BudgetConnection(target.getConnection(username, password), permits);
+        }
+        catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * A connection asked while all the permits are held by the same run would wait forever, so the wait is bounded.
+     */
+    private void acquire() throws SQLException {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection of the budget", e);
+        }
+        if (!acquired) {
+            throw new SQLException("No connection of the tenant connection budget " + budget + " is free after " + timeoutMillis
+                    + "ms. The session, the cluster lock, the parallel branches, the async upgrades, chunked migrations and online "
+                    + "schema changes all count, increase tenantConnectionBudget or tenantConnectionTimeoutMillis");
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return target.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        target.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        target.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return target.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return target.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return target.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return target.isWrapperFor(iface);
+    }
+}
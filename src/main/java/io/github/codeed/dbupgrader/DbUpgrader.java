@@ -1,58 +1,213 @@
 package io.github.codeed.dbupgrader;
 
+import com.google.common.hash.*;
 import com.google.common.util.concurrent.*;
 import io.github.codeed.dbupgrader.stats.*;
 import io.github.codeed.dbupgrader.utils.*;
 import lombok.extern.java.*;
-import org.apache.commons.lang3.*;
 import org.apache.commons.lang3.exception.*;
 
 import javax.sql.*;
+import java.io.*;
+import java.nio.charset.*;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
 @Log
 public class DbUpgrader {
     private final String name;
     private final DataSource dataSource;
     private final UpgradeConfiguration upgradeConfiguration;
-    private final ExecutorService asyncExecutor = Executors.newSingleThreadExecutor(
-            new ThreadFactoryBuilder().setNameFormat("dbupgrader-%d").build()
-    );
+    /**
+     * max branches of {@link UpgradeConfiguration#isParallelUpgrade()}, may be less than the parallelism because of the connection budget
+     */
+    private final int branchParallelism;
 
     public DbUpgrader(String name, DataSource ds, UpgradeConfiguration upgradeConfiguration) {
+        this(name, ds, upgradeConfiguration, upgradeConfiguration.getParallelism());
+    }
+
+    DbUpgrader(String name, DataSource ds, UpgradeConfiguration upgradeConfiguration, int branchParallelism) {
         this.name = name;
         this.dataSource = ds;
         this.upgradeConfiguration = upgradeConfiguration;
+        this.branchParallelism = branchParallelism;
+    }
+
+    /**
+     * Upgrade many databases (eg: one schema per tenant) with the same upgrade classes.
+     * The upgrade classes are scanned and planned once, then the tenants are upgraded at the same time by
+     * {@link UpgradeConfiguration#getTenantParallelism()} threads, each one uses at most
+     * {@link UpgradeConfiguration#getTenantConnectionBudget()} connections.
+     * A failed tenant doesn't stop the others, check {@link MultiTenantUpgradeResult#getFailures()}.
+     *
+     * @param dataSources key is the tenant name
+     */
+    public static MultiTenantUpgradeResult upgradeAll(Map<String, DataSource> dataSources, UpgradeConfiguration upgradeConfiguration)
+            throws Exception {
+        return new MultiTenantUpgrader(upgradeConfiguration).upgradeAll(dataSources);
+    }
+
+    /**
+     * @return what this run did. The async upgrades submitted by this run may be still running when this method returns, see
+     * {@link UpgradeReport#getAsyncUpgrades()}.
+     */
+    public UpgradeReport upgrade() throws Exception {
+        String fingerprint = null;
+        if (upgradeConfiguration.isSkipIfUpToDate() && !upgradeConfiguration.isDryRun() && !upgradeConfiguration.isRehearsal()) {
+            fingerprint = getUpgradeFingerprint(upgradeConfiguration);
+        }
+        return upgrade(fingerprint, () -> UpgradePlan.create(upgradeConfiguration));
+    }
+
+    /**
+     * @param fingerprint see {@link #getUpgradeFingerprint(UpgradeConfiguration)}, null if {@link UpgradeConfiguration#isSkipIfUpToDate()}
+     *                    is off
+     * @param planner     only called when the database needs upgrade
+     */
+    UpgradeReport upgrade(String fingerprint, Callable<UpgradePlan> planner) throws Exception {
+        if (fingerprint != null && isUpToDate(fingerprint)) {
+            log.info("Database is already at version " + upgradeConfiguration.getTargetVersion() + " and upgrade classes are not " +
+                    "changed, skip upgrade for " + name);
+            return UpgradeReport.skipped(name);
+        }
+        UpgradeLock lock = null;
+        if (upgradeConfiguration.isClusterLock() && !upgradeConfiguration.isDryRun() && !upgradeConfiguration.isRehearsal()) {
+            createLockTableIfNotExists();
+            lock = new UpgradeLock(name, dataSource, upgradeConfiguration);
+            lock.acquireOrWait();
+        }
+        try {
+            // another node may have finished the same upgrade while this one waited for the lock
+            if (lock != null && fingerprint != null && isUpToDate(fingerprint)) {
+                log.info("Database is upgraded to version " + upgradeConfiguration.getTargetVersion() + " by another node, skip " +
+                        "upgrade for " + name);
+                return UpgradeReport.skipped(name);
+            }
+            long start = System.nanoTime();
+            UpgradeSession session = UpgradeSession.open(name, dataSource, upgradeConfiguration, lock);
+            AsyncUpgradeHandle asyncUpgrades;
+            try {
+                doUpgrade(session, fingerprint, planner.call());
+                if (upgradeConfiguration.isRehearsal()) {
+                    session.rollback();
+                }
+            }
+            catch (Exception e) {
+                session.rollback();
+                throw e;
+            }
+            finally {
+                asyncUpgrades = session.close();
+            }
+            UpgradeReport report = session.getReport();
+            report.finish(System.nanoTime() - start, asyncUpgrades);
+            if (report.isRehearsal()) {
+                log.info(report.describeRehearsal());
+            }
+            notifyListeners(listener -> listener.onUpgradeFinished(report));
+            return report;
+        }
+        finally {
+            // async upgrades may be still running, they are recorded in the history table one by one and don't need the lock
+            if (lock != null) {
+                lock.release();
+            }
+        }
     }
 
-    public void upgrade() throws Exception {
+    /**
+     * The lock lives in the configuration table, so it's created before the lock. All nodes may create it at the same time.
+     */
+    private void createLockTableIfNotExists() throws SQLException {
+        String tableName = upgradeConfiguration.getUpgradeConfigurationTable();
+        // wrapped for the DDL execution policy
+        StatisticsTrackingConnection conn = new StatisticsTrackingConnection(dataSource.getConnection());
+        conn.setDdlExecutionPolicy(upgradeConfiguration.ddlExecutionPolicy());
+        try {
+            conn.setAutoCommit(true);
+            createConfigurationTableIfNotExists(conn, tableName);
+        }
+        catch (SQLException e) {
+            if (!SqlHelperUtils.tableExists(conn, tableName)) {
+                throw e;
+            }
+        }
+        finally {
+            SqlHelperUtils.closeQuietly(conn);
+        }
+    }
+
+    /**
+     * Start building a migration of a large table, which commits chunk by chunk and resumes from its checkpoint after a restart.
+     *
+     * @param name identifies the checkpoint, it must be unique in the application
+     */
+    public ChunkedMigration.Builder chunkedMigration(String name) {
+        if (upgradeConfiguration.isRehearsal()) {
+            throw new IllegalStateException("Chunked migration " + name + " commits chunk by chunk, it can't be rehearsed");
+        }
+        return ChunkedMigration.builder(dataSource, upgradeConfiguration, name);
+    }
+
+    /**
+     * Start building an online schema change of a large mysql table by a shadow table, see {@link OnlineSchemaChange}.
+     *
+     * @param upgradeConnection the connection of the running upgrade, the copy is reported to its sql statistics. It must not have
+     *                          uncommitted changes when the change runs, see {@link OnlineSchemaChange}
+     */
+    public OnlineSchemaChange.Builder onlineSchemaChange(Connection upgradeConnection, String table) {
+        if (upgradeConfiguration.isRehearsal()) {
+            throw new IllegalStateException("Online schema change of " + table + " runs DDL, it can't be rehearsed");
+        }
+        return OnlineSchemaChange.builder(dataSource, upgradeConfiguration, upgradeConnection, table);
+    }
+
+    /**
+     * Cheap check whether the database is already upgraded to the target version with the same upgrade classes.
+     * It doesn't scan the upgrade classes, only fingerprints the files of the upgrade package and runs one query.
+     */
+    public boolean isUpToDate() throws Exception {
+        return isUpToDate(getUpgradeFingerprint(upgradeConfiguration));
+    }
+
+    /**
+     * The fingerprint covers the target version, it's only saved by a complete upgrade to it.
+     */
+    private boolean isUpToDate(String fingerprint) throws SQLException {
+        Connection conn = dataSource.getConnection();
+        try {
+            return fingerprint.equals(SqlHelperUtils.query(conn, "select value from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                    + " where key_name = ?", rs -> rs.getString(1), getFingerprintKey()));
+        }
+        catch (SQLException e) {
+            // eg: the first run, the configuration table is not created yet
+            log.fine("Failed to check whether upgrade is needed: " + e.getMessage());
+            return false;
+        }
+        finally {
+            SqlHelperUtils.closeQuietly(conn);
+        }
+    }
+
+    private void doUpgrade(UpgradeSession session, String fingerprint, UpgradePlan plan) throws Exception {
         log.info("Upgrade started for " + name);
         // 1 init setup stuffs
-        List<Class> classList = ReflectionUtils.getClasses(upgradeConfiguration.getUpgradeClassPackage());
-        Connection conn = dataSource.getConnection();
-        conn.setAutoCommit(false);
+        Connection conn = session.getConnection();
         createConfigurationTableIfNotExists(conn, upgradeConfiguration.getUpgradeConfigurationTable());
         createUpgradeHistoryTableIfNotExists(conn, upgradeConfiguration.getUpgradeHistoryTable());
         int currentVer = getCurrentVersion(conn);
+        session.loadHistory(upgradeConfiguration);
         int targetVer = upgradeConfiguration.getTargetVersion();
-        TreeMap<Integer, Map<Class, DbUpgrade>> upgradeList = new TreeMap<>();
-        for (Class c : classList) {
-            DbUpgrade upgrade = (DbUpgrade) c.getDeclaredAnnotation(DbUpgrade.class);
-            if (upgrade != null) {
-                if (upgradeConfiguration.getSkipClasses().contains(c.getCanonicalName())) {
-                    log.info("Skip upgrade class because of configruation:" + c.getCanonicalName());
-                    continue;
-                }
-                upgradeList.computeIfAbsent(upgrade.version(), k -> new HashMap<>()).put(c, upgrade);
-            }
-        }
-        conn.commit();
-        SqlHelperUtils.closeQuietly(conn);
-        log.info("Scanned total versions: " + upgradeList.size());
+        int fromVer = currentVer;
+        notifyListeners(listener -> listener.onUpgradeStarted(name, fromVer, targetVer));
+        session.commit();
+        log.info("Scanned total versions: " + plan.getVersionCount() + ", executed classes: " + session.getHistory().size());
         if (upgradeConfiguration.getPotentialMissVersionCount() > 0) {
-            checkPotentialMissedUpgrade(currentVer, upgradeList);
+            checkPotentialMissedUpgrade(session, currentVer, plan);
         }
         if (currentVer > targetVer) {
             log.warning("Current version is " + currentVer + ", which is larger than target version " + targetVer + ". Do you forget to " +
@@ -63,190 +218,360 @@ public class DbUpgrader {
         }
         // 2 check and do upgrades
         // any version left and is not processed?
+        boolean upgradeToTarget = currentVer <= targetVer;
         while (currentVer <= targetVer) {
-            Map<Class, DbUpgrade> needUpgradeOfVersion = upgradeList.get(currentVer);
+            Map<String, UpgradeDescriptor> needUpgradeOfVersion = plan.getUpgrades(currentVer);
             if (needUpgradeOfVersion != null && !needUpgradeOfVersion.isEmpty()) {
-                executeUpgrades(needUpgradeOfVersion, currentVer, true);
+                executeUpgrades(session, plan, currentVer, true);
             }
             currentVer++;
         }
+        // the version stays at the last version with classes, so the classes added later to the versions after it still run.
+        // async upgrades may still fail, so the fingerprint is saved by the next run which finds nothing to do
+        if (upgradeToTarget && fingerprint != null && !session.getAsyncEngine().hasSubmitted()) {
+            updateConfigValue(conn, getFingerprintKey(), fingerprint);
+            session.commit();
+        }
         log.info("Upgrade finished for " + name);
     }
 
-    private void checkPotentialMissedUpgrade(int currentVer, TreeMap<Integer, Map<Class, DbUpgrade>> upgradeList) throws Exception {
+    private void checkPotentialMissedUpgrade(UpgradeSession session, int currentVer, UpgradePlan plan) throws Exception {
         // Check for missed upgrades in recent versions
 
         log.info("Checking for missed upgrades in recent " + upgradeConfiguration.getPotentialMissVersionCount() + " versions");
-        Connection checkConn = dataSource.getConnection();
-        checkConn.setAutoCommit(false);
-        try {
-            // Get versions less than currentVer in descending order
-            NavigableMap<Integer, Map<Class, DbUpgrade>> recentVersions = upgradeList.headMap(currentVer, false).descendingMap();
+        // Get versions less than currentVer in descending order
+        int checkedVersions = 0;
+        for (int ver : plan.getVersionsBefore(currentVer)) {
+            if (checkedVersions >= upgradeConfiguration.getPotentialMissVersionCount()) {
+                break;
+            }
+
+            Map<String, UpgradeDescriptor> upgradesForVersion = plan.getUpgrades(ver);
 
-            int checkedVersions = 0;
-            for (Map.Entry<Integer, Map<Class, DbUpgrade>> versionEntry : recentVersions.entrySet()) {
-                if (checkedVersions >= upgradeConfiguration.getPotentialMissVersionCount()) {
+            // Check if any upgrade in this version was missed
+            boolean hasMissedUpgrades = false;
+            for (String upgradeClass : upgradesForVersion.keySet()) {
+                if (!session.getHistory().isExecuted(upgradeClass)) {
+                    log.warning("Found missed upgrade: " + upgradeClass + " for version " + ver);
+                    hasMissedUpgrades = true;
                     break;
                 }
+            }
 
-                int ver = versionEntry.getKey();
-                Map<Class, DbUpgrade> upgradesForVersion = versionEntry.getValue();
+            // If we found missed upgrades, execute all upgrades for this version
+            if (hasMissedUpgrades) {
+                executeUpgrades(session, plan, ver, false);
+            }
 
-                // Check if any upgrade in this version was missed
-                boolean hasMissedUpgrades = false;
-                for (Class upgradeClass : upgradesForVersion.keySet()) {
-                    if (!isUpgradeExecuted(checkConn, upgradeClass.getName())) {
-                        log.warning("Found missed upgrade: " + upgradeClass.getName() + " for version " + ver);
-                        hasMissedUpgrades = true;
-                        break;
-                    }
-                }
+            checkedVersions++;
+        }
+    }
+
+    private void executeUpgrades(UpgradeSession session, UpgradePlan plan, int currentVer, boolean updateVersion) throws Exception {
+        Map<String, UpgradeDescriptor> needUpgradeOfVersion = plan.getUpgrades(currentVer);
+        boolean parallel = upgradeConfiguration.isParallelUpgrade() && !upgradeConfiguration.isDryRun() && !upgradeConfiguration.isRehearsal()
+                && branchParallelism > 0;
+        // Topological sort, it's done once per plan
+        List<List<String>> levels = plan.getLevels(currentVer, parallel);
+        long versionStart = System.nanoTime();
+        UpgradeReport.VersionReport versionReport = session.getReport().addVersion(currentVer);
 
-                // If we found missed upgrades, execute all upgrades for this version
-                if (hasMissedUpgrades) {
-                    executeUpgrades(upgradesForVersion, ver, false);
+        // Execute upgrades in order
+        UpgradeHistorySnapshot history = session.getHistory();
+        StatisticsTrackingConnection conn = session.getConnection();
+        try {
+            long transactionHold = 0;
+            if (parallel) {
+                transactionHold = executeLevelsInParallel(session, levels, needUpgradeOfVersion, currentVer, versionReport);
+            }
+            else {
+                for (String className : levels.get(0)) {
+                    UpgradeDescriptor descriptor = needUpgradeOfVersion.get(className);
+                    UpgradeProcess upgrade = prepareUpgrade(session, descriptor, currentVer, versionReport);
+                    if (upgrade == null) {
+                        continue;
+                    }
+                    if (upgradeConfiguration.isRehearsal()) {
+                        rehearseOneUpgrade(upgrade, conn, descriptor, versionReport);
+                        history.markExecuted(className);
+                        continue;
+                    }
+                    try {
+                        executeOneUpgrade(upgrade, conn, descriptor, versionReport);
+                        history.markExecuted(className);
+                        log.info("Executed a new class " + className);
+                    }
+                    catch (Exception e) {
+                        log.severe("Failed to execute upgrade for class: " + className);
+                        throw e;
+                    }
                 }
+            }
 
-                checkedVersions++;
+            // the columns queued by the upgrades of the version, one ALTER per table
+            session.flushDdl();
+            if (updateVersion) {
+                // Update current version
+                updateCurrentVersion(conn, currentVer);
+            }
+            if (!upgradeConfiguration.isRehearsal()) {
+                session.commit();
             }
-            checkConn.commit();
+            long duration = System.nanoTime() - versionStart;
+            versionReport.finish(duration, parallel ? transactionHold : duration);
+            notifyListeners(listener -> listener.onVersionFinished(name, versionReport));
         }
         catch (Exception e) {
-            checkConn.rollback();
+            session.rollback();
             throw e;
         }
-        finally {
-            SqlHelperUtils.closeQuietly(checkConn);
-        }
     }
 
-    private void executeUpgrades(Map<Class, DbUpgrade> needUpgradeOfVersion, int currentVer, boolean updateVersion) throws Exception {
-        // Build dependency graph
-        Map<String, Set<String>> graph = new HashMap<>();
-        Map<String, Class> classMap = new HashMap<>();
-
-        // Initialize graph with all classes
-        for (Map.Entry<Class, DbUpgrade> entry : needUpgradeOfVersion.entrySet()) {
-            String className = entry.getKey().getName();
-            DbUpgrade upgrade = entry.getValue();
-            classMap.put(className, entry.getKey());
-            graph.put(className, new HashSet<>());
-
-            // Add dependencies based on after() annotation
-            String afterClass = upgrade.after();
-            if (StringUtils.isNotEmpty(afterClass)) {
-                if (needUpgradeOfVersion.containsKey(Class.forName(upgradeConfiguration.getUpgradeClassPackage() + "." + afterClass))) {
-                    graph.get(className).add(afterClass);
-                }
-            }
+    /**
+     * Run the class in the transaction of the rehearsal. A failed class is rolled back to its savepoint and recorded in the report,
+     * the next classes still run and see the changes of the previous ones.
+     */
+    private void rehearseOneUpgrade(UpgradeProcess upgrade, StatisticsTrackingConnection conn, UpgradeDescriptor descriptor,
+                                    UpgradeReport.VersionReport versionReport) throws SQLException {
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            executeOneUpgrade(upgrade, conn, descriptor, versionReport);
+            log.info("Rehearsed class " + descriptor.getClassName());
         }
-
-        // Topological sort
-        List<String> sortedClasses = TopologicalSort.sort(graph);
-        if (sortedClasses == null) {
-            throw new RuntimeException("Circular dependency detected in upgrade classes for version " + currentVer);
+        catch (SQLException | RuntimeException e) {
+            conn.rollback(savepoint);
+            log.warning("Rehearsal of class " + descriptor.getClassName() + " failed: " + e.getMessage());
         }
+    }
 
-        // Execute upgrades in order
-        Connection conn = null;
+    /**
+     * Run the levels of the dependency graph one by one. Classes in the same level run at the same time on a bounded number of
+     * connections. A level commits only when every branch of it succeeded, so the next level can see its changes.
+     * Note: it's not atomic for the version. Each branch commits its classes with their history records in its own transaction,
+     * one branch after another, so a failed commit leaves the branches committed before it, and a failed level leaves the levels
+     * before it. The committed classes are recorded and not executed again, the version is only ticked on the session connection
+     * after all levels.
+     *
+     * @return the longest transaction hold time of the levels
+     */
+    private long executeLevelsInParallel(UpgradeSession session, List<List<String>> levels, Map<String, UpgradeDescriptor> descriptors,
+                                         int currentVer, UpgradeReport.VersionReport versionReport) throws Exception {
+        UpgradeHistorySnapshot history = session.getHistory();
+        ExecutorService branchExecutor = Executors.newFixedThreadPool(branchParallelism,
+                new ThreadFactoryBuilder().setNameFormat("dbupgrader-branch-%d").setDaemon(true).build());
+        long maxTransactionHold = 0;
         try {
-            conn = StatisticsTrackingConnectionFactory.createConnection(dataSource.getConnection());
-            conn.setAutoCommit(false);
-
-            for (String className : sortedClasses) {
-                Class clazz = classMap.get(className);
-                Object instance = clazz.getDeclaredConstructor().newInstance();
-                if (instance instanceof UpgradeProcess) {
-                    if (upgradeConfiguration.isDryRun()) {
-                        log.info("Execute class " + className + " for version " + currentVer);
-                        continue;
+            for (List<String> level : levels) {
+                long levelStart = System.nanoTime();
+                Queue<Map.Entry<UpgradeDescriptor, UpgradeProcess>> runnable = new ConcurrentLinkedQueue<>();
+                for (String className : level) {
+                    UpgradeDescriptor descriptor = descriptors.get(className);
+                    UpgradeProcess upgrade = prepareUpgrade(session, descriptor, currentVer, versionReport);
+                    if (upgrade != null) {
+                        runnable.add(new AbstractMap.SimpleEntry<>(descriptor, upgrade));
                     }
-                    if (isUpgradeExecuted(conn, clazz.getName())) {
-                        continue;
+                }
+                if (runnable.isEmpty()) {
+                    continue;
+                }
+
+                // each branch keeps one connection, so the level never uses more than parallelism connections
+                int branchCount = Math.min(branchParallelism, runnable.size());
+                AtomicBoolean failed = new AtomicBoolean(false);
+                // the branches are known before they run, so their connections are released whatever escapes from them
+                List<UpgradeBranch> branches = new ArrayList<>();
+                List<Future<?>> futures = new ArrayList<>();
+                try {
+                    for (int i = 0; i < branchCount; i++) {
+                        UpgradeBranch branch = new UpgradeBranch();
+                        branches.add(branch);
+                        futures.add(branchExecutor.submit(() -> runBranch(session, branch, runnable, failed, versionReport)));
                     }
-                    UpgradeProcess upgrade = (UpgradeProcess) instance;
-                    try {
-                        DbUpgrade upgradeAnnotation = (DbUpgrade) clazz.getDeclaredAnnotation(DbUpgrade.class);
-                        DbUpgrade.ExecutionMode exeMode = upgradeAnnotation.executionMode();
-                        if (exeMode == DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL || exeMode == DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL) {
-                            asyncExecutor.submit(() -> {
-                                Connection singleConn = null;
-                                try {
-                                    singleConn = StatisticsTrackingConnectionFactory.createConnection(dataSource.getConnection());
-                                    singleConn.setAutoCommit(false);
-                                    executeOneUpgrade(upgrade, singleConn, upgradeAnnotation, clazz);
-                                    singleConn.commit();
-                                }
-                                catch (Exception e) {
-                                    log.severe("Failed to execute upgrade for " + className + " ex:" + ExceptionUtils.getStackTrace(e));
-                                    SqlHelperUtils.rollbackQuietly(singleConn);
-                                    SqlHelperUtils.closeQuietly(singleConn);
-                                    if (exeMode == DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL) {
-                                        log.severe("Failed to execute upgrade. Will exit jvm...");
-                                        System.exit(-1);
-                                    }
-                                }
-                            });
+                    ExecutionException escaped = null;
+                    for (Future<?> future : futures) {
+                        try {
+                            future.get();
                         }
-                        else {
-                            executeOneUpgrade(upgrade, conn, upgradeAnnotation, clazz);
+                        catch (ExecutionException e) {
+                            // eg: an Error, the other branches stop after their running class
+                            failed.set(true);
+                            escaped = escaped == null ? e : escaped;
                         }
-
-                        log.info("Executed a new class " + className);
                     }
-                    catch (Exception e) {
-                        log.severe("Failed to execute upgrade for class: " + className);
-                        throw e;
+                    if (escaped != null) {
+                        throw escaped;
                     }
+                    for (UpgradeBranch branch : branches) {
+                        if (branch.failure != null) {
+                            throw branch.failure;
+                        }
+                    }
+                    for (UpgradeBranch branch : branches) {
+                        history.write(branch.conn, branch.executed);
+                    }
+                    // like the session, a node which lost the lock must not commit the level
+                    session.checkLock();
+                    // one transaction per branch, the ones committed before a failure stay committed with their history
+                    for (UpgradeBranch branch : branches) {
+                        branch.conn.commit();
+                        branch.executed.forEach(history::markCommitted);
+                    }
+                    maxTransactionHold = Math.max(maxTransactionHold, System.nanoTime() - levelStart);
+                }
+                catch (Exception e) {
+                    branches.forEach(branch -> SqlHelperUtils.rollbackQuietly(branch.conn));
+                    throw e;
                 }
-                else {
-                    log.warning("The class " + className + " doesn't implement " + UpgradeProcess.class);
+                finally {
+                    branches.forEach(branch -> SqlHelperUtils.closeQuietly(branch.conn));
                 }
             }
+        }
+        finally {
+            branchExecutor.shutdownNow();
+        }
+        return maxTransactionHold;
+    }
 
-            if (updateVersion) {
-                // Update current version
-                updateCurrentVersion(conn, currentVer);
+    private void runBranch(UpgradeSession session, UpgradeBranch branch, Queue<Map.Entry<UpgradeDescriptor, UpgradeProcess>> runnable,
+                           AtomicBoolean failed, UpgradeReport.VersionReport versionReport) {
+        Map.Entry<UpgradeDescriptor, UpgradeProcess> next = null;
+        try {
+            branch.conn = session.wrap(dataSource.getConnection(), true);
+            branch.conn.setAutoCommit(false);
+            while (!failed.get() && (next = runnable.poll()) != null) {
+                UpgradeDescriptor descriptor = next.getKey();
+                executeOneUpgrade(next.getValue(), branch.conn, descriptor, versionReport);
+                branch.executed.add(descriptor.getClassName());
+                log.info("Executed a new class " + descriptor.getClassName());
             }
-            conn.commit();
         }
         catch (Exception e) {
-            if (conn != null) {
-                conn.rollback();
+            log.severe("Failed to execute upgrade for class: " + (next == null ? "" : next.getKey().getClassName()));
+            failed.set(true);
+            branch.failure = e;
+        }
+    }
+
+    private static class UpgradeBranch {
+        private StatisticsTrackingConnection conn;
+        private final List<String> executed = new ArrayList<>();
+        private Exception failure;
+    }
+
+    /**
+     * @return the upgrade process which should be executed now in current transaction, or null if it's skipped or submitted to
+     * the async engine.
+     */
+    private UpgradeProcess prepareUpgrade(UpgradeSession session, UpgradeDescriptor descriptor, int currentVer,
+                                          UpgradeReport.VersionReport versionReport) throws Exception {
+        String className = descriptor.getClassName();
+        UpgradeHistorySnapshot history = session.getHistory();
+        if (upgradeConfiguration.isDryRun()) {
+            log.info("Execute class " + className + " for version " + currentVer);
+            return null;
+        }
+        if (history.isExecuted(className)) {
+            return null;
+        }
+        // the class is only loaded when it's going to run
+        Object instance = descriptor.loadClass().getDeclaredConstructor().newInstance();
+        if (!(instance instanceof UpgradeProcess)) {
+            log.warning("The class " + className + " doesn't implement " + UpgradeProcess.class);
+            return null;
+        }
+        UpgradeProcess upgrade = (UpgradeProcess) instance;
+        // a rehearsal runs the async classes in its transaction
+        if (descriptor.isAsync() && !upgradeConfiguration.isRehearsal()) {
+            session.getAsyncEngine().submit(className, () -> {
+                StatisticsTrackingConnection singleConn = null;
+                try {
+                    singleConn = session.wrap(dataSource.getConnection(), false);
+                    singleConn.setAutoCommit(false);
+                    executeOneUpgrade(upgrade, singleConn, descriptor, versionReport);
+                    history.write(singleConn, Collections.singletonList(className));
+                    singleConn.commit();
+                    history.markCommitted(className);
+                    SqlHelperUtils.closeQuietly(singleConn);
+                    log.info("Executed a new async class " + className);
+                    return null;
+                }
+                catch (Exception e) {
+                    log.severe("Failed to execute upgrade for " + className + " ex:" + ExceptionUtils.getStackTrace(e));
+                    SqlHelperUtils.rollbackQuietly(singleConn);
+                    SqlHelperUtils.closeQuietly(singleConn);
+                    if (descriptor.getExecutionMode() == DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL) {
+                        log.severe("Failed to execute upgrade. Will exit jvm...");
+                        System.exit(-1);
+                    }
+                    throw e;
+                }
+            });
+            log.info("Submitted a new async class " + className);
+            return null;
+        }
+        return upgrade;
+    }
+
+    private void executeOneUpgrade(UpgradeProcess upgrade, StatisticsTrackingConnection conn, UpgradeDescriptor descriptor,
+                                   UpgradeReport.VersionReport versionReport) throws SQLException {
+        long start = System.nanoTime();
+        SqlExecutionStats stats = conn.getStats();
+        String className = descriptor.getClassName();
+        UpgradeReport.ClassReport classReport;
+        conn.setContext(className);
+        // the tracking connection fails the statement crossing the limit, the check below still catches it if the upgrade swallowed that
+        conn.setMaxAffectedRecords(descriptor.getMaxAffectRecords());
+        try {
+            upgrade.upgrade(this, conn);
+            // Get statistics after upgrade
+            classReport = new UpgradeReport.ClassReport(descriptor, System.nanoTime() - start, stats);
+            if (stats != null) {
+                log.info("Upgrade statistics for " + className + ": " + stats);
+                // Check maxAffectRecords from annotation
+                if (descriptor.getMaxAffectRecords() > 0 && stats.getTotalAffectedRecords() > descriptor.getMaxAffectRecords()) {
+                    throw new SQLException(
+                            String.format("Upgrade %s affected %d records, which exceeds the maximum limit of %d. Please " +
+                                            "increase the" +
+                                            " maxAffectRecords or set it to -1 (no limit) in the @DbUpgrade.",
+                                    className,
+                                    stats.getTotalAffectedRecords(), descriptor.getMaxAffectRecords())
+                    );
+                }
             }
+        }
+        catch (SQLException | RuntimeException e) {
+            if (upgradeConfiguration.isRehearsal()) {
+                versionReport.getClasses().add(new UpgradeReport.ClassReport(descriptor, System.nanoTime() - start, stats,
+                        e.getMessage()));
+            }
+            notifyListeners(listener -> listener.onClassFailed(name, descriptor, e));
             throw e;
         }
         finally {
-            SqlHelperUtils.closeQuietly(conn);
+            conn.setContext(null);
+            conn.setMaxAffectedRecords(0);
+            if (stats != null) {
+                stats.reset();
+            }
         }
+        versionReport.getClasses().add(classReport);
+        notifyListeners(listener -> listener.onClassFinished(name, classReport));
     }
 
-    private void executeOneUpgrade(UpgradeProcess upgrade, Connection conn, DbUpgrade upgradeAnnotation, Class clazz) throws SQLException {
-        upgrade.upgrade(this, conn);
-        // Get statistics after upgrade
-        SqlExecutionStats stats = StatisticsTrackingConnectionFactory.getStats(conn);
-        String className = clazz.getName();
-        if (stats != null) {
-            log.info("Upgrade statistics for " + className + ": " + stats);
-            // Check maxAffectRecords from annotation
-            if (upgradeAnnotation.maxAffectRecords() > 0 && stats.getTotalAffectedRecords() > upgradeAnnotation.maxAffectRecords()) {
-                throw new SQLException(
-                        String.format("Upgrade %s affected %d records, which exceeds the maximum limit of %d. Please " +
-                                        "increase the" +
-                                        " maxAffectRecords or set it to -1 (no limit) in the @DbUpgrade.",
-                                className,
-                                stats.getTotalAffectedRecords(), upgradeAnnotation.maxAffectRecords())
-                );
+    private void notifyListeners(Consumer<UpgradeListener> callback) {
+        for (UpgradeListener listener : upgradeConfiguration.getListeners()) {
+            try {
+                callback.accept(listener);
+            }
+            catch (RuntimeException e) {
+                log.warning("Upgrade listener " + listener.getClass().getName() + " failed: " + e.getMessage());
             }
-            stats.reset();
         }
-        // Record successful upgrade
-        SqlHelperUtils.executeUpdate(conn, "insert into " + upgradeConfiguration.getUpgradeHistoryTable() + "(application, class_name)" +
-                " values (?, ?)", upgradeConfiguration.getApplication(), className);
     }
 
     private void updateCurrentVersion(Connection conn, int ver) throws SQLException {
-        if (upgradeConfiguration.isDryRun()) {
+        if (upgradeConfiguration.isDryRun() || upgradeConfiguration.isRehearsal()) {
             log.info("Will tick version to " + ver);
         }
         else {
@@ -260,16 +585,32 @@ public class DbUpgrader {
         return UpgradeConfiguration.CONFIG_CURRENT_VERSION + "-" + upgradeConfiguration.getApplication();
     }
 
-    private void createUpgradeHistoryTableIfNotExists(Connection conn, String tableName) throws SQLException {
-        String createTableSql = String.format(upgradeConfiguration.getCreateHistoryTableSql(), tableName);
-        SqlHelperUtils.createTableIfNotExists(conn, tableName, createTableSql);
+    private String getFingerprintKey() {
+        return UpgradeConfiguration.CONFIG_UPGRADE_FINGERPRINT + "-" + upgradeConfiguration.getApplication();
     }
 
-    private boolean isUpgradeExecuted(Connection conn, String className) throws SQLException {
-        String executed = SqlHelperUtils.query(conn, "select class_name from " + upgradeConfiguration.getUpgradeHistoryTable() + " where " +
-                "application=? and class_name = ?", rs -> rs.getString(1), upgradeConfiguration.getApplication(), className);
+    /**
+     * Identifies the scanned upgrade set: the classes under the upgrade package and the configuration which decides what to run.
+     */
+    static String getUpgradeFingerprint(UpgradeConfiguration upgradeConfiguration) throws IOException {
+        String source = ReflectionUtils.getPackageFingerprint(upgradeConfiguration.getUpgradeClassPackage())
+                + "|" + upgradeConfiguration.getTargetVersion()
+                + "|" + upgradeConfiguration.getSkipClasses();
+        return Hashing.sha256().hashString(source, StandardCharsets.UTF_8).toString();
+    }
 
-        return executed != null;
+    private void updateConfigValue(Connection conn, String key, String value) throws SQLException {
+        int updated = SqlHelperUtils.executeUpdate(conn, "update " + upgradeConfiguration.getUpgradeConfigurationTable() + " set value = ? " +
+                "where key_name = ?", value, key);
+        if (updated == 0) {
+            SqlHelperUtils.executeUpdate(conn, "insert into " + upgradeConfiguration.getUpgradeConfigurationTable() + "(key_name, value) " +
+                    "values (?, ?)", key, value);
+        }
+    }
+
+    private void createUpgradeHistoryTableIfNotExists(Connection conn, String tableName) throws SQLException {
+        String createTableSql = String.format(upgradeConfiguration.getCreateHistoryTableSql(), tableName);
+        SqlHelperUtils.createTableIfNotExists(conn, tableName, createTableSql);
     }
 
     private void createConfigurationTableIfNotExists(Connection conn, String tableName) throws SQLException {
@@ -0,0 +1,43 @@
+package io.github.codeed.dbupgrader;
+
+import java.util.*;
+
+/**
+ * Aggregated result of {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)}.
+ */
+public class MultiTenantUpgradeResult {
+    private final Map<String, TenantUpgradeResult> results;
+
+    MultiTenantUpgradeResult(Map<String, TenantUpgradeResult> results) {
+        this.results = Collections.unmodifiableMap(results);
+    }
+
+    /**
+     * @return result of each tenant, in the order of the given data sources
+     */
+    public Map<String, TenantUpgradeResult> getResults() {
+        return results;
+    }
+
+    public boolean isAllSucceeded() {
+        return results.values().stream().allMatch(TenantUpgradeResult::isSucceeded);
+    }
+
+    /**
+     * @return the failure of each failed tenant
+     */
+    public Map<String, Exception> getFailures() {
+        Map<String, Exception> failures = new LinkedHashMap<>();
+        results.forEach((tenant, result) -> {
+            if (!result.isSucceeded()) {
+                failures.put(tenant, result.getFailure());
+            }
+        });
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "Upgraded " + results.size() + " tenants, failed: " + getFailures().keySet();
+    }
+}
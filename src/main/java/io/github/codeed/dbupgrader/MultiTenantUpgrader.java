@@ -0,0 +1,83 @@
+package io.github.codeed.dbupgrader;
+
+import com.google.common.util.concurrent.*;
+import lombok.extern.java.*;
+import org.apache.commons.lang3.exception.*;
+
+import javax.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)}. The fingerprint and the {@link UpgradePlan} are computed once
+ * and shared by all tenants, the plan is only created when the first tenant needs upgrade.
+ */
+@Log
+class MultiTenantUpgrader {
+    private final UpgradeConfiguration upgradeConfiguration;
+    private UpgradePlan plan;
+
+    MultiTenantUpgrader(UpgradeConfiguration upgradeConfiguration) {
+        this.upgradeConfiguration = upgradeConfiguration;
+    }
+
+    MultiTenantUpgradeResult upgradeAll(Map<String, DataSource> dataSources) throws Exception {
+        Map<String, TenantUpgradeResult> results = new LinkedHashMap<>();
+        if (dataSources.isEmpty()) {
+            return new MultiTenantUpgradeResult(results);
+        }
+        String fingerprint = null;
+        if (upgradeConfiguration.isSkipIfUpToDate() && !upgradeConfiguration.isDryRun() && !upgradeConfiguration.isRehearsal()) {
+            fingerprint = DbUpgrader.getUpgradeFingerprint(upgradeConfiguration);
+        }
+
+        long start = System.currentTimeMillis();
+        int threads = Math.min(upgradeConfiguration.getTenantParallelism(), dataSources.size());
+        ExecutorService tenantExecutor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("dbupgrader-tenant-%d").setDaemon(true).build());
+        try {
+            Map<String, Future<TenantUpgradeResult>> futures = new LinkedHashMap<>();
+            String tenantFingerprint = fingerprint;
+            dataSources.forEach((tenant, dataSource) ->
+                    futures.put(tenant, tenantExecutor.submit(() -> upgradeTenant(tenant, dataSource, tenantFingerprint))));
+            for (Map.Entry<String, Future<TenantUpgradeResult>> future : futures.entrySet()) {
+                results.put(future.getKey(), future.getValue().get());
+            }
+        }
+        finally {
+            tenantExecutor.shutdownNow();
+        }
+        MultiTenantUpgradeResult result = new MultiTenantUpgradeResult(results);
+        log.info(result + ", took " + (System.currentTimeMillis() - start) + "ms");
+        return result;
+    }
+
+    private TenantUpgradeResult upgradeTenant(String tenant, DataSource dataSource, String fingerprint) {
+        long start = System.currentTimeMillis();
+        int budget = upgradeConfiguration.getTenantConnectionBudget();
+        DataSource tenantDataSource = dataSource;
+        int branchParallelism = upgradeConfiguration.getParallelism();
+        if (budget > 0) {
+            tenantDataSource = new ConnectionBudgetDataSource(dataSource, budget, upgradeConfiguration.getTenantConnectionTimeoutMillis());
+            // the session, the cluster lock and the async upgrades may keep their connections during the whole upgrade, one is left
+            // for the helpers, the branches share the rest. No branch means the classes run one by one on the session
+            branchParallelism = Math.max(0, Math.min(branchParallelism, budget - upgradeConfiguration.reservedConnections() - 1));
+        }
+        try {
+            UpgradeReport report = new DbUpgrader(tenant, tenantDataSource, upgradeConfiguration, branchParallelism)
+                    .upgrade(fingerprint, this::getPlan);
+            return new TenantUpgradeResult(tenant, report, null, System.currentTimeMillis() - start);
+        }
+        catch (Exception e) {
+            log.severe("Failed to upgrade tenant " + tenant + " ex:" + ExceptionUtils.getStackTrace(e));
+            return new TenantUpgradeResult(tenant, null, e, System.currentTimeMillis() - start);
+        }
+    }
+
+    private synchronized UpgradePlan getPlan() throws Exception {
+        if (plan == null) {
+            plan = UpgradePlan.create(upgradeConfiguration);
+        }
+        return plan;
+    }
+}
@@ -0,0 +1,320 @@
+package io.github.codeed.dbupgrader;
+
+import com.google.common.base.*;
+import com.google.common.hash.*;
+import io.github.codeed.dbupgrader.stats.*;
+import io.github.codeed.dbupgrader.utils.*;
+import lombok.extern.java.*;
+
+import javax.sql.*;
+import java.nio.charset.*;
+import java.sql.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * Changes a large mysql table without blocking its writes for the whole ALTER, the way pt-online-schema-change does:
+ * <ol>
+ *     <li>create the shadow table {@code _<table>_new} like the table, and run the ALTER on the empty shadow</li>
+ *     <li>create triggers on the table, so the rows inserted, updated and deleted from now on are copied to the shadow</li>
+ *     <li>copy the rows in primary key chunks by {@link ChunkedMigration}, throttled and resumable after a restart</li>
+ *     <li>swap the tables by one atomic {@code RENAME TABLE}, then drop the triggers</li>
+ * </ol>
+ * The old table is kept as {@code _<table>_old} unless {@link Builder#dropOldTable(boolean)}.
+ * The DDL runs on its own connection, as mysql commits the transaction for each DDL. The copy is reported to the sql statistics of
+ * the upgrade run with the upgrade class of the connection, and its progress is logged.
+ * The table needs a single numeric primary key, and no triggers of its own.
+ * <p>
+ * The triggers and the RENAME wait for the metadata lock of every open transaction which touched the table, including the one of
+ * the upgrade connection. So {@link #run()} ends the transaction of the upgrade connection first, and refuses to run if it has
+ * uncommitted changes: they would be committed without the history of their upgrade classes. Put the change in its own upgrade
+ * class, an async one or the first one of its version. The DDL runs by the {@link DdlExecutionPolicy}
+ * of the configuration, so a RENAME waiting for a metadata lock doesn't stall the writes of the table for long.
+ * <pre>{@code
+ * migrator.onlineSchemaChange(conn, "orders")
+ *         .alter("ADD COLUMN channel VARCHAR(20), ADD INDEX idx_channel (channel)")
+ *         .build()
+ *         .run();
+ * }</pre>
+ */
+@Log
+public class OnlineSchemaChange {
+    /**
+     * the hash of the ALTER which finished on the shadow table, a shadow without it is recreated
+     */
+    public static final String CONFIG_OSC_SHADOW = "osc_shadow";
+
+    private final DataSource dataSource;
+    private final UpgradeConfiguration upgradeConfiguration;
+    private final Connection upgradeConnection;
+    /**
+     * null if the DDL runs as is
+     */
+    private final DdlExecutionPolicy ddlExecutionPolicy;
+    private final String table;
+    private String alter;
+    private String keyColumn = "id";
+    private int chunkSize = 1_000;
+    private long targetChunkMillis = 500;
+    private long pauseMillis = 0;
+    private boolean dropOldTable = false;
+
+    private OnlineSchemaChange(DataSource dataSource, UpgradeConfiguration upgradeConfiguration, Connection upgradeConnection,
+                               String table) {
+        this.dataSource = dataSource;
+        this.upgradeConfiguration = upgradeConfiguration;
+        this.upgradeConnection = upgradeConnection;
+        this.ddlExecutionPolicy = upgradeConfiguration.ddlExecutionPolicy();
+        this.table = table;
+    }
+
+    static Builder builder(DataSource dataSource, UpgradeConfiguration upgradeConfiguration, Connection upgradeConnection,
+                           String table) {
+        return new Builder(new OnlineSchemaChange(dataSource, upgradeConfiguration, upgradeConnection, table));
+    }
+
+    /**
+     * Run the schema change. If a previous run was interrupted after the ALTER of the shadow table, the shadow table, the triggers
+     * and the copy checkpoint are reused. Otherwise the shadow table is created again, and the copy starts over.
+     */
+    public void run() throws SQLException, InterruptedException {
+        String shadowTable = "_" + table + "_new";
+        String oldTable = "_" + table + "_old";
+        String shadowKey = CONFIG_OSC_SHADOW + "-" + upgradeConfiguration.getApplication() + "-" + table;
+        String alterHash = Hashing.sha256().hashString(alter, StandardCharsets.UTF_8).toString();
+        Connection conn = dataSource.getConnection();
+        try {
+            conn.setAutoCommit(true);
+            String product = conn.getMetaData().getDatabaseProductName();
+            if (product == null || !(product.contains("MySQL") || product.contains("MariaDB"))) {
+                throw new SQLException("Online schema change only supports mysql, but the database is " + product);
+            }
+            if (SqlHelperUtils.tableExists(conn, oldTable)) {
+                throw new SQLException("Table " + oldTable + " exists, drop it before changing " + table + " again");
+            }
+            endUpgradeTransaction();
+            ChunkedMigration copy = ChunkedMigration.builder(dataSource, upgradeConfiguration, "osc_" + table)
+                    .table(table)
+                    .keyColumn(keyColumn)
+                    .chunkSize(chunkSize)
+                    .maxChunkSize(Math.max(chunkSize, 50_000))
+                    .minChunkSize(Math.min(chunkSize, 100))
+                    .targetChunkMillis(targetChunkMillis)
+                    .pauseMillis(pauseMillis)
+                    .statisticsFrom(upgradeConnection)
+                    .build();
+            boolean shadowExists = SqlHelperUtils.tableExists(conn, shadowTable);
+            if (shadowExists && !alterHash.equals(readConfigValue(conn, shadowKey))) {
+                // the ALTER didn't finish on it, or the ALTER is another one. The triggers write to it, they go first
+                log.warning("Shadow table " + shadowTable + " isn't altered by " + alter + ", create it again");
+                dropTriggers(conn);
+                execute(conn, "DROP TABLE " + quote(shadowTable));
+                shadowExists = false;
+            }
+            if (!shadowExists) {
+                // the checkpoint of an interrupted copy into a previous shadow table doesn't apply to the new one
+                copy.clearCheckpoint();
+                execute(conn, "CREATE TABLE " + quote(shadowTable) + " LIKE " + quote(table));
+                execute(conn, "ALTER TABLE " + quote(shadowTable) + " " + alter);
+                writeConfigValue(conn, shadowKey, alterHash);
+            }
+            else {
+                log.info("Shadow table " + shadowTable + " exists, resume the online schema change of " + table);
+            }
+            List<String> columns = getCommonColumns(conn, shadowTable);
+            createTriggers(conn, shadowTable, columns);
+
+            String columnList = columns.stream().map(OnlineSchemaChange::quote).collect(Collectors.joining(", "));
+            String copySql = "INSERT IGNORE INTO " + quote(shadowTable) + " (" + columnList + ") SELECT " + columnList + " FROM "
+                    + quote(table) + " WHERE " + quote(keyColumn) + " > ? AND " + quote(keyColumn) + " <= ? LOCK IN SHARE MODE";
+            long estimatedRows = estimateRows(conn);
+            long[] copiedRows = {0};
+            long[] lastLog = {System.currentTimeMillis()};
+            copy.run((chunkConn, fromExclusive, toInclusive) -> {
+                copiedRows[0] += SqlHelperUtils.executeUpdate(chunkConn, copySql, fromExclusive, toInclusive);
+                if (System.currentTimeMillis() - lastLog[0] >= 10_000) {
+                    lastLog[0] = System.currentTimeMillis();
+                    log.info("Online schema change of " + table + " copied " + copiedRows[0] + " rows"
+                            + (estimatedRows > 0 ? ", about " + Math.min(99, copiedRows[0] * 100 / estimatedRows) + "%" : ""));
+                }
+            });
+
+            // atomic, the writes wait for the rename instead of failing
+            execute(conn, "RENAME TABLE " + quote(table) + " TO " + quote(oldTable) + ", " + quote(shadowTable) + " TO " + quote(table));
+            dropTriggers(conn);
+            copy.clearCheckpoint();
+            SqlHelperUtils.executeUpdate(conn, "delete from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                    + " where key_name = ?", shadowKey);
+            log.info("Online schema change of " + table + " finished, copied " + copiedRows[0] + " rows");
+            if (dropOldTable) {
+                execute(conn, "DROP TABLE " + quote(oldTable));
+            }
+        }
+        finally {
+            SqlHelperUtils.closeQuietly(conn);
+        }
+    }
+
+    /**
+     * The triggers and the RENAME would wait for the metadata lock held by the open transaction of the upgrade connection.
+     * The transaction only read, so ending it doesn't commit anything of the version.
+     */
+    private void endUpgradeTransaction() throws SQLException {
+        if (upgradeConnection == null || upgradeConnection.getAutoCommit()) {
+            return;
+        }
+        StatisticsTrackingConnection tracking = StatisticsTrackingConnection.of(upgradeConnection);
+        if (tracking == null || tracking.hasUncommittedChanges()) {
+            throw new SQLException("The upgrade connection has uncommitted changes, the online schema change of " + table + " would " +
+                    "wait for its transaction. Run it in its own upgrade class, an async one or the first one of its version");
+        }
+        upgradeConnection.commit();
+    }
+
+    private String readConfigValue(Connection conn, String key) throws SQLException {
+        return SqlHelperUtils.query(conn, "select value from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                + " where key_name = ?", rs -> rs.getString(1), key);
+    }
+
+    private void writeConfigValue(Connection conn, String key, String value) throws SQLException {
+        String configurationTable = upgradeConfiguration.getUpgradeConfigurationTable();
+        if (SqlHelperUtils.executeUpdate(conn, "update " + configurationTable + " set value = ? where key_name = ?", value, key) == 0) {
+            SqlHelperUtils.executeUpdate(conn, "insert into " + configurationTable + "(key_name, value) values (?, ?)", key, value);
+        }
+    }
+
+    /**
+     * The columns of the table which still exist in the shadow, the dropped columns are not copied.
+     */
+    private List<String> getCommonColumns(Connection conn, String shadowTable) throws SQLException {
+        Set<String> shadowColumns = new HashSet<>();
+        for (String column : getColumns(conn, shadowTable)) {
+            shadowColumns.add(column.toLowerCase(Locale.ROOT));
+        }
+        List<String> columns = getColumns(conn, table).stream()
+                .filter(column -> shadowColumns.contains(column.toLowerCase(Locale.ROOT)))
+                .collect(Collectors.toList());
+        if (columns.stream().noneMatch(column -> column.equalsIgnoreCase(keyColumn))) {
+            throw new SQLException("The key column " + keyColumn + " must exist in both " + table + " and " + shadowTable);
+        }
+        return columns;
+    }
+
+    private List<String> getColumns(Connection conn, String tableName) throws SQLException {
+        return SqlHelperUtils.queryForList(conn, "select column_name from information_schema.columns where table_schema = database() " +
+                "and table_name = ? order by ordinal_position", rs -> rs.getString(1), tableName);
+    }
+
+    private void createTriggers(Connection conn, String shadowTable, List<String> columns) throws SQLException {
+        String columnList = columns.stream().map(OnlineSchemaChange::quote).collect(Collectors.joining(", "));
+        String newValues = columns.stream().map(column -> "NEW." + quote(column)).collect(Collectors.joining(", "));
+        String replace = "REPLACE INTO " + quote(shadowTable) + " (" + columnList + ") VALUES (" + newValues + ")";
+        String deleteOld = "DELETE IGNORE FROM " + quote(shadowTable) + " WHERE " + quote(keyColumn) + " <=> OLD." + quote(keyColumn);
+        createTrigger(conn, "ins", "AFTER INSERT", replace);
+        // the key may be changed by the update
+        createTrigger(conn, "upd", "AFTER UPDATE", "BEGIN " + deleteOld + "; " + replace + "; END");
+        createTrigger(conn, "del", "AFTER DELETE", deleteOld);
+    }
+
+    private void createTrigger(Connection conn, String suffix, String event, String body) throws SQLException {
+        String trigger = triggerName(suffix);
+        Integer exists = SqlHelperUtils.query(conn, "select 1 from information_schema.triggers where trigger_schema = database() and " +
+                "trigger_name = ?", rs -> rs.getInt(1), trigger);
+        if (exists == null) {
+            execute(conn, "CREATE TRIGGER " + quote(trigger) + " " + event + " ON " + quote(table) + " FOR EACH ROW " + body);
+        }
+    }
+
+    private void dropTriggers(Connection conn) throws SQLException {
+        for (String suffix : new String[]{"ins", "upd", "del"}) {
+            execute(conn, "DROP TRIGGER IF EXISTS " + quote(triggerName(suffix)));
+        }
+    }
+
+    private String triggerName(String suffix) {
+        // mysql identifiers are at most 64 characters
+        return (table.length() > 52 ? table.substring(0, 52) : table) + "_osc_" + suffix;
+    }
+
+    private long estimateRows(Connection conn) throws SQLException {
+        Long rows = SqlHelperUtils.query(conn, "select table_rows from information_schema.tables where table_schema = database() and " +
+                "table_name = ?", rs -> rs.getLong(1), table);
+        return rows == null ? 0 : rows;
+    }
+
+    private void execute(Connection conn, String sql) throws SQLException {
+        log.info("Online schema change of " + table + ": " + sql);
+        if (ddlExecutionPolicy != null) {
+            ddlExecutionPolicy.execute(conn, sql);
+        }
+        else {
+            SqlHelperUtils.executeUpdate(conn, sql);
+        }
+    }
+
+    private static String quote(String identifier) {
+        return "`" + identifier.replace("`", "``") + "`";
+    }
+
+    public static class Builder {
+        private final OnlineSchemaChange change;
+
+        private Builder(OnlineSchemaChange change) {
+            this.change = change;
+        }
+
+        /**
+         * The alter specification applied to the shadow table, what follows {@code ALTER TABLE <table>}.
+         * eg: {@code ADD COLUMN channel VARCHAR(20), DROP COLUMN legacy}. Don't rename or change the type of the key column.
+         */
+        public Builder alter(String alter) {
+            change.alter = alter;
+            return this;
+        }
+
+        /**
+         * The single numeric primary key column
+         */
+        public Builder keyColumn(String keyColumn) {
+            change.keyColumn = keyColumn;
+            return this;
+        }
+
+        public Builder chunkSize(int chunkSize) {
+            change.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Expected time of one copy chunk, see {@link ChunkedMigration.Builder#targetChunkMillis(long)}
+         */
+        public Builder targetChunkMillis(long targetChunkMillis) {
+            change.targetChunkMillis = targetChunkMillis;
+            return this;
+        }
+
+        /**
+         * Sleep between copy chunks to leave room for the online traffic and the replicas
+         */
+        public Builder pauseMillis(long pauseMillis) {
+            change.pauseMillis = pauseMillis;
+            return this;
+        }
+
+        /**
+         * Drop {@code _<table>_old} after the swap. Dropping a huge table may stall mysql, it's kept by default.
+         */
+        public Builder dropOldTable(boolean dropOldTable) {
+            change.dropOldTable = dropOldTable;
+            return this;
+        }
+
+        public OnlineSchemaChange build() {
+            Preconditions.checkArgument(change.table != null && !change.table.isEmpty(), "table must be set");
+            Preconditions.checkArgument(change.alter != null && !change.alter.trim().isEmpty(), "alter must be set");
+            Preconditions.checkArgument(change.keyColumn != null && !change.keyColumn.isEmpty(), "keyColumn must be set");
+            Preconditions.checkArgument(change.chunkSize > 0, "chunkSize must be > 0");
+            return change;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.codeed.dbupgrader;
+
+import lombok.*;
+
+/**
+ * Result of one tenant of {@link DbUpgrader#upgradeAll(java.util.Map, UpgradeConfiguration)}.
+ */
+@Getter
+public class TenantUpgradeResult {
+    private final String tenant;
+    /**
+     * null if the upgrade failed
+     */
+    private final UpgradeReport report;
+    /**
+     * null if the upgrade succeeded
+     */
+    private final Exception failure;
+    private final long durationMillis;
+
+    TenantUpgradeResult(String tenant, UpgradeReport report, Exception failure, long durationMillis) {
+        this.tenant = tenant;
+        this.report = report;
+        this.failure = failure;
+        this.durationMillis = durationMillis;
+    }
+
+    public boolean isSucceeded() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        return tenant + (isSucceeded() ? " succeeded" : " failed: " + failure.getMessage()) + " in " + durationMillis + "ms";
+    }
+}
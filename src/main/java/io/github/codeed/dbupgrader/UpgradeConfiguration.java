@@ -1,6 +1,7 @@
 package io.github.codeed.dbupgrader;
 
 import com.google.common.base.*;
+import io.github.codeed.dbupgrader.utils.*;
 import lombok.*;
 import org.apache.commons.lang3.*;
 
@@ -51,6 +52,18 @@ public class UpgradeConfiguration {
             ")";
     private boolean dryRun = false;
 
+    /**
+     * Run the upgrade classes in one transaction which is always rolled back, and record each statement with its time and
+     * affected rows in {@link UpgradeReport#getRehearsedStatements()}. The statements which would commit (eg: DDL) are refused,
+     * a failed class is rolled back to its savepoint and the next classes still run. For DML only upgrades
+     */
+    private boolean rehearsal = false;
+
+    /**
+     * Record the EXPLAIN of the first statement of each sql shape in a rehearsal
+     */
+    private boolean rehearsalExplain = false;
+
     /**
      * In case of we missed some upgrade process, we will recheck recent version records and execute it if missed.
      * for example, two branch may share a same target version and someone merged the branch to master, and upgrade it.
@@ -60,10 +73,153 @@ public class UpgradeConfiguration {
      */
     private int potentialMissVersionCount = 10;
 
+    /**
+     * If true, upgrade classes of a version which don't depend on each other (see {@link DbUpgrade#after()}) will run at the same
+     * time, each level of the dependency graph commits when all of its branches succeed.
+     * The version is not atomic then: each branch commits in its own transaction, a failure leaves the branches and the levels
+     * committed before it. Their classes are recorded in the history and not executed again by the next run.
+     * Only enable it when the upgrade classes of same version don't touch the same rows/tables.
+     */
+    private boolean parallelUpgrade = false;
+
+    /**
+     * Max threads and connections used by {@link #parallelUpgrade}, the idle connection of the upgrade session stays open besides
+     * them
+     */
+    private int parallelism = 4;
+
+    /**
+     * Max async upgrades ({@link DbUpgrade.ExecutionMode#ASYNC_LOG_IF_FAIL}, {@link DbUpgrade.ExecutionMode#ASYNC_EXIT_IF_FAIL})
+     * running at the same time. 1 means they run one by one in the order of versions.
+     */
+    private int asyncPoolSize = 1;
+
+    /**
+     * Use virtual threads for async upgrades when running on java 21+.
+     * Virtual threads are daemon threads, the JVM doesn't wait for the async upgrades in progress when it exits.
+     */
+    private boolean asyncVirtualThreads;
+
+    /**
+     * If true, {@link DbUpgrader#upgrade()} returns after a single query when the last complete upgrade was to the same target
+     * version with the same upgrade classes. See {@link DbUpgrader#isUpToDate()}
+     * Off by default, the upgrade classes are not scanned, so a class which was removed from the history table is not run again.
+     */
+    private boolean skipIfUpToDate;
+
+    /**
+     * How to find the upgrade classes when there is no build time index, see {@link ScanMode}
+     */
+    private ScanMode scanMode = ScanMode.REFLECTION;
+
+    /**
+     * Max tenants upgraded at the same time by {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)}
+     */
+    private int tenantParallelism = 8;
+
+    /**
+     * Max connections of one tenant open at the same time in {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)},
+     * including the connections of {@link #parallelUpgrade}, async upgrades, {@link ChunkedMigration} and {@link OnlineSchemaChange}.
+     * <=0 means no limit. The upgrade session and the {@link #clusterLock} keep one connection each during the whole upgrade, and
+     * {@link #asyncPoolSize} connections are kept for the async upgrades, which may hold theirs for a long backfill. One more is left
+     * for the helpers, so the branches of {@link #parallelUpgrade} are limited to the rest.
+     */
+    private int tenantConnectionBudget = 0;
+
+    /**
+     * Max time to wait for a free connection of {@link #tenantConnectionBudget}, then the connection fails with a SQLException
+     */
+    private long tenantConnectionTimeoutMillis = 60_000;
+
+    /**
+     * If true, only one node of the cluster runs the upgrades, by a lease lock in the configuration table.
+     * The other nodes wait for the lock, then skip if {@link #skipIfUpToDate} finds the upgrade done by the holder, or run the
+     * upgrade which only executes what is still missing. See {@link #lockLeaseMillis}
+     */
+    private boolean clusterLock = false;
+
+    /**
+     * The lock expires if the holder doesn't renew it in time (eg: it crashed), then another node takes it over.
+     * It's renewed every third of the lease.
+     */
+    private long lockLeaseMillis = 60_000;
+
+    /**
+     * First and max interval of the waiting nodes to check the lock, the interval doubles with jitter
+     */
+    private long lockPollMillis = 500;
+    private long lockMaxPollMillis = 10_000;
+
+    /**
+     * Max time to wait for the lock
+     */
+    private long lockWaitTimeoutMillis = 30 * 60_000;
+
+    /**
+     * Statements slower than this are logged with the upgrade class running them. <=0 means never
+     */
+    private long slowSqlThresholdMillis = 1_000;
+
+    /**
+     * Load the tables, columns and indexes once, and answer the existence checks of {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils} from memory.
+     * The DDL run by the upgrades is applied to it, the DDL of other processes during the upgrade is not seen
+     */
+    private boolean schemaSnapshot = false;
+
+    /**
+     * Queue the columns added by {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils#smartAddColumn} in a version, and add them
+     * by one ALTER per table at the end of the version. The upgrades of the version can't use the queued columns, unless they call
+     * {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils#flushDdl}
+     */
+    private boolean coalesceDdl = false;
+
+    /**
+     * mysql only. The session lock_wait_timeout of the DDL run by {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils} and of
+     * the upgrade tables, so a DDL waiting for a metadata lock doesn't block the queries of the table for long. The DDL is retried
+     * with backoff until {@link #ddlRetryBudgetMillis}. <=0 means off, the DDL waits as long as the server's lock_wait_timeout
+     */
+    private int ddlLockWaitTimeoutSeconds = 0;
+
+    /**
+     * Total time to retry a DDL which timed out waiting for the metadata lock
+     */
+    private long ddlRetryBudgetMillis = 10 * 60_000;
+
+    /**
+     * Log the sessions which may block the DDL when it times out waiting for the metadata lock
+     */
+    private boolean ddlReportBlockers = false;
+
+    /**
+     * Callbacks of the upgrade progress, see {@link UpgradeListener}
+     */
+    private List<UpgradeListener> listeners = new ArrayList<>();
+
     public static final String CONFIG_CURRENT_VERSION = "current_version";
+    public static final String CONFIG_UPGRADE_FINGERPRINT = "upgrade_fingerprint";
+    public static final String CONFIG_UPGRADE_LOCK = "upgrade_lock";
 
     public UpgradeConfiguration() {}
 
+    /**
+     * @return the connections which may be open during the whole upgrade: the session, the cluster lock if it's used, and one for
+     * each async upgrade running at the same time. A dry run doesn't run the async upgrades, a rehearsal runs them on the session
+     */
+    int reservedConnections() {
+        if (dryRun || rehearsal) {
+            return 1;
+        }
+        return (clusterLock ? 2 : 1) + asyncPoolSize;
+    }
+
+    /**
+     * @return null if {@link #ddlLockWaitTimeoutSeconds} is off
+     */
+    DdlExecutionPolicy ddlExecutionPolicy() {
+        return ddlLockWaitTimeoutSeconds > 0 ? new DdlExecutionPolicy(ddlLockWaitTimeoutSeconds, ddlRetryBudgetMillis,
+                ddlReportBlockers) : null;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -107,6 +263,16 @@ public class UpgradeConfiguration {
             return this;
         }
 
+        public Builder rehearsal(boolean rehearsal) {
+            config.rehearsal = rehearsal;
+            return this;
+        }
+
+        public Builder rehearsalExplain(boolean rehearsalExplain) {
+            config.rehearsalExplain = rehearsalExplain;
+            return this;
+        }
+
         public Builder createHistoryTableSql(String createHistoryTableSql) {
             if (createHistoryTableSql != null) {
                 config.createHistoryTableSql = createHistoryTableSql;
@@ -136,6 +302,113 @@ public class UpgradeConfiguration {
             return this;
         }
 
+        public Builder parallelUpgrade(boolean parallelUpgrade) {
+            config.parallelUpgrade = parallelUpgrade;
+            return this;
+        }
+
+        public Builder parallelism(int parallelism) {
+            config.parallelism = parallelism;
+            return this;
+        }
+
+        public Builder asyncPoolSize(int asyncPoolSize) {
+            config.asyncPoolSize = asyncPoolSize;
+            return this;
+        }
+
+        public Builder asyncVirtualThreads(boolean asyncVirtualThreads) {
+            config.asyncVirtualThreads = asyncVirtualThreads;
+            return this;
+        }
+
+        public Builder skipIfUpToDate(boolean skipIfUpToDate) {
+            config.skipIfUpToDate = skipIfUpToDate;
+            return this;
+        }
+
+        public Builder scanMode(ScanMode scanMode) {
+            if (scanMode != null) {
+                config.scanMode = scanMode;
+            }
+            return this;
+        }
+
+        public Builder tenantParallelism(int tenantParallelism) {
+            config.tenantParallelism = tenantParallelism;
+            return this;
+        }
+
+        public Builder tenantConnectionBudget(int tenantConnectionBudget) {
+            config.tenantConnectionBudget = tenantConnectionBudget;
+            return this;
+        }
+
+        public Builder tenantConnectionTimeoutMillis(long tenantConnectionTimeoutMillis) {
+            config.tenantConnectionTimeoutMillis = tenantConnectionTimeoutMillis;
+            return this;
+        }
+
+        public Builder clusterLock(boolean clusterLock) {
+            config.clusterLock = clusterLock;
+            return this;
+        }
+
+        public Builder lockLeaseMillis(long lockLeaseMillis) {
+            config.lockLeaseMillis = lockLeaseMillis;
+            return this;
+        }
+
+        public Builder lockPollMillis(long lockPollMillis) {
+            config.lockPollMillis = lockPollMillis;
+            return this;
+        }
+
+        public Builder lockMaxPollMillis(long lockMaxPollMillis) {
+            config.lockMaxPollMillis = lockMaxPollMillis;
+            return this;
+        }
+
+        public Builder lockWaitTimeoutMillis(long lockWaitTimeoutMillis) {
+            config.lockWaitTimeoutMillis = lockWaitTimeoutMillis;
+            return this;
+        }
+
+        public Builder slowSqlThresholdMillis(long slowSqlThresholdMillis) {
+            config.slowSqlThresholdMillis = slowSqlThresholdMillis;
+            return this;
+        }
+
+        public Builder schemaSnapshot(boolean schemaSnapshot) {
+            config.schemaSnapshot = schemaSnapshot;
+            return this;
+        }
+
+        public Builder coalesceDdl(boolean coalesceDdl) {
+            config.coalesceDdl = coalesceDdl;
+            return this;
+        }
+
+        public Builder ddlLockWaitTimeoutSeconds(int ddlLockWaitTimeoutSeconds) {
+            config.ddlLockWaitTimeoutSeconds = ddlLockWaitTimeoutSeconds;
+            return this;
+        }
+
+        public Builder ddlRetryBudgetMillis(long ddlRetryBudgetMillis) {
+            config.ddlRetryBudgetMillis = ddlRetryBudgetMillis;
+            return this;
+        }
+
+        public Builder ddlReportBlockers(boolean ddlReportBlockers) {
+            config.ddlReportBlockers = ddlReportBlockers;
+            return this;
+        }
+
+        public Builder addListener(UpgradeListener listener) {
+            config.listeners.add(Preconditions.checkNotNull(listener));
+            return this;
+        }
+
         public UpgradeConfiguration build() {
             // Validate required fields
             Preconditions.checkArgument(StringUtils.isNotEmpty(config.upgradeClassPackage), 
@@ -153,7 +426,33 @@ public class UpgradeConfiguration {
                     "createConfigurationTableSql must not be empty");
             Preconditions.checkArgument(StringUtils.isNotEmpty(config.createHistoryTableSql),
                     "createHistoryTableSql must not be empty");
+            Preconditions.checkArgument(config.parallelism > 0, "parallelism must be > 0");
+            Preconditions.checkArgument(config.asyncPoolSize > 0, "asyncPoolSize must be > 0");
+            Preconditions.checkArgument(config.tenantParallelism > 0, "tenantParallelism must be > 0");
+            Preconditions.checkArgument(config.tenantConnectionBudget <= 0 || config.tenantConnectionBudget >= config.reservedConnections(),
+                    "tenantConnectionBudget must be >= " + config.reservedConnections()
+                            + ", the session and the cluster lock keep one connection each, and each of asyncPoolSize async upgrades one");
+            Preconditions.checkArgument(config.tenantConnectionTimeoutMillis > 0, "tenantConnectionTimeoutMillis must be > 0");
+            Preconditions.checkArgument(config.ddlRetryBudgetMillis >= 0, "ddlRetryBudgetMillis must be >= 0");
+            Preconditions.checkArgument(!(config.dryRun && config.rehearsal), "dryRun and rehearsal can't be both on");
+            Preconditions.checkArgument(config.lockLeaseMillis > 0, "lockLeaseMillis must be > 0");
+            Preconditions.checkArgument(config.lockPollMillis > 0, "lockPollMillis must be > 0");
+            Preconditions.checkArgument(config.lockMaxPollMillis >= config.lockPollMillis, "lockMaxPollMillis must be >= lockPollMillis");
+            Preconditions.checkArgument(config.lockWaitTimeoutMillis > 0, "lockWaitTimeoutMillis must be > 0");
             return config;
         }
     }
+
+    public enum ScanMode {
+        /**
+         * load every class under the package without initializing it, and check the {@link DbUpgrade} annotation
+         */
+        REFLECTION,
+        /**
+         * read the {@link DbUpgrade} annotation from the class file bytes, only the upgrade classes are loaded when they are
+         * going to run. Helpers and other classes in the package are never loaded or initialized.
+         * Note: the inherited annotation of a sub class is not visible in its class file, so it's not found in this mode.
+         */
+        CLASS_FILE
+    }
 }
@@ -0,0 +1,62 @@
+package io.github.codeed.dbupgrader;
+
+import lombok.*;
+
+/**
+ * The {@link DbUpgrade} attributes of an upgrade class.
+ * It's used to plan the upgrades, the class itself is only loaded by {@link #loadClass()} when it's going to run.
+ */
+@Getter
+public class UpgradeDescriptor {
+    /**
+     * full class name {@link Class#getName()}
+     */
+    private final String className;
+    private final int version;
+    private final String after;
+    private final int maxAffectRecords;
+    private final DbUpgrade.ExecutionMode executionMode;
+    @Getter(AccessLevel.NONE)
+    private volatile Class<?> clazz;
+
+    public UpgradeDescriptor(String className, int version, String after, int maxAffectRecords, DbUpgrade.ExecutionMode executionMode) {
+        this.className = className;
+        this.version = version;
+        this.after = after;
+        this.maxAffectRecords = maxAffectRecords;
+        this.executionMode = executionMode;
+    }
+
+    public static UpgradeDescriptor of(Class<?> clazz, DbUpgrade upgrade) {
+        UpgradeDescriptor descriptor = new UpgradeDescriptor(clazz.getName(), upgrade.version(), upgrade.after(), upgrade.maxAffectRecords(),
+                upgrade.executionMode());
+        descriptor.clazz = clazz;
+        return descriptor;
+    }
+
+    /**
+     * {@link Class#getCanonicalName()} which is used by {@link UpgradeConfiguration#getSkipClasses()}
+     */
+    public String getCanonicalName() {
+        return className.replace('$', '.');
+    }
+
+    public boolean isAsync() {
+        return executionMode == DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL || executionMode == DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL;
+    }
+
+    public Class<?> loadClass() throws ClassNotFoundException {
+        Class<?> loaded = clazz;
+        if (loaded == null) {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            loaded = classLoader == null ? Class.forName(className) : Class.forName(className, true, classLoader);
+            clazz = loaded;
+        }
+        return loaded;
+    }
+
+    @Override
+    public String toString() {
+        return className + "(version=" + version + ")";
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * In memory view of the upgrade history table for one application.
+ * It's loaded with a single query per {@link DbUpgrader#upgrade()}, updated in memory when a class is executed,
+ * and the new records are written back in one batch when the version commits.
+ */
+class UpgradeHistorySnapshot {
+    private final UpgradeConfiguration upgradeConfiguration;
+    /**
+     * async upgrades mark themselves from the executor threads
+     */
+    private final Set<String> executed = ConcurrentHashMap.newKeySet();
+    /**
+     * executed in current transaction but not committed yet
+     */
+    private final List<String> pending = new ArrayList<>();
+
+    private UpgradeHistorySnapshot(UpgradeConfiguration upgradeConfiguration) {
+        this.upgradeConfiguration = upgradeConfiguration;
+    }
+
+    static UpgradeHistorySnapshot load(Connection conn, UpgradeConfiguration upgradeConfiguration) throws SQLException {
+        UpgradeHistorySnapshot snapshot = new UpgradeHistorySnapshot(upgradeConfiguration);
+        List<String> classNames = SqlHelperUtils.queryForList(conn, "select class_name from " + upgradeConfiguration.getUpgradeHistoryTable() +
+                " where application = ?", rs -> rs.getString(1), upgradeConfiguration.getApplication());
+        snapshot.executed.addAll(classNames);
+        return snapshot;
+    }
+
+    boolean isExecuted(String className) {
+        return executed.contains(className);
+    }
+
+    int size() {
+        return executed.size();
+    }
+
+    /**
+     * Mark the class executed in current transaction. It will be written by {@link #flush(Connection)}
+     */
+    void markExecuted(String className) {
+        executed.add(className);
+        pending.add(className);
+    }
+
+    /**
+     * Write the pending records in one batch. Call it before the version commits.
+     */
+    void flush(Connection conn) throws SQLException {
+        write(conn, pending);
+    }
+
+    /**
+     * The transaction which flushed the pending records is committed.
+     */
+    void commit() {
+        pending.clear();
+    }
+
+    /**
+     * The transaction is rolled back, so the pending records never happened.
+     */
+    void rollback() {
+        pending.forEach(executed::remove);
+        pending.clear();
+    }
+
+    /**
+     * Record classes which run in their own transaction (eg: async upgrades or parallel branches).
+     * The caller should call {@link #markCommitted(String)} after the transaction commits.
+     */
+    void write(Connection conn, Collection<String> classNames) throws SQLException {
+        if (classNames.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement ps = conn.prepareStatement(insertSql())) {
+            for (String className : classNames) {
+                ps.setString(1, upgradeConfiguration.getApplication());
+                ps.setString(2, className);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    void markCommitted(String className) {
+        executed.add(className);
+    }
+
+    private String insertSql() {
+        return "insert into " + upgradeConfiguration.getUpgradeHistoryTable() + "(application, class_name) values (?, ?)";
+    }
+}
@@ -0,0 +1,34 @@
+package io.github.codeed.dbupgrader;
+
+/**
+ * Callbacks of {@link DbUpgrader#upgrade()}, eg: to feed a metrics pipeline. Register it by
+ * {@link UpgradeConfiguration.Builder#addListener(UpgradeListener)}.
+ * The callbacks run on the upgrading thread (branch threads for parallel upgrades, async threads for async upgrades),
+ * so they should be cheap and thread safe. A failed callback is logged and doesn't affect the upgrade.
+ */
+public interface UpgradeListener {
+
+    /**
+     * @param name the name of the {@link DbUpgrader}
+     */
+    default void onUpgradeStarted(String name, int currentVersion, int targetVersion) {
+    }
+
+    default void onClassFinished(String name, UpgradeReport.ClassReport report) {
+    }
+
+    default void onClassFailed(String name, UpgradeDescriptor descriptor, Exception e) {
+    }
+
+    /**
+     * Called after the version is committed.
+     */
+    default void onVersionFinished(String name, UpgradeReport.VersionReport report) {
+    }
+
+    /**
+     * Called when {@link DbUpgrader#upgrade()} returns normally, async upgrades may be still running.
+     */
+    default void onUpgradeFinished(UpgradeReport report) {
+    }
+}
@@ -0,0 +1,255 @@
+package io.github.codeed.dbupgrader;
+
+import com.google.common.util.concurrent.*;
+import io.github.codeed.dbupgrader.utils.*;
+import lombok.extern.java.*;
+
+import javax.sql.*;
+import java.lang.management.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A lease lock stored in the configuration table, so only one node of the cluster runs the upgrades.
+ * The row value is "holder|expire time in millis". The holder renews the lease every third of
+ * {@link UpgradeConfiguration#getLockLeaseMillis()}, a lease which is not renewed in time (eg: the holder crashed) is taken over
+ * by the next node. All changes are compare-and-set on the row value, so two nodes never hold it at the same time.
+ * The lock keeps its own connection from the first try until {@link #release()}, so the renewal never waits for a connection
+ * (eg: of a tenant connection budget). A lease which couldn't be renewed before it expired is lost, even if the renewal is still
+ * blocked.
+ * Note: the expire time comes from the clock of the holder, the lease should be much longer than the clock skew of the nodes.
+ */
+@Log
+class UpgradeLock {
+    private static final String SEPARATOR = "|";
+
+    private final String name;
+    private final DataSource dataSource;
+    private final UpgradeConfiguration upgradeConfiguration;
+    private final String lockKey;
+    private final String holder;
+    private Connection conn;
+    private volatile String value;
+    /**
+     * expire time of the lease in {@link #value}
+     */
+    private volatile long expiresAt;
+    private volatile boolean lost;
+    private ScheduledExecutorService renewer;
+
+    UpgradeLock(String name, DataSource dataSource, UpgradeConfiguration upgradeConfiguration) {
+        this.name = name;
+        this.dataSource = dataSource;
+        this.upgradeConfiguration = upgradeConfiguration;
+        this.lockKey = UpgradeConfiguration.CONFIG_UPGRADE_LOCK + "-" + upgradeConfiguration.getApplication();
+        // pid@host plus a random part, so two upgraders in the same jvm are different holders
+        this.holder = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Acquire the lock, waiting while another node holds it. It doesn't tell whether the other node finished the upgrade, the
+     * caller checks the database again under the lock.
+     * The waiting node polls with one query and a jittered exponential backoff, it only writes when the lock is free or expired.
+     * The connection of the lock is closed if it's not acquired.
+     */
+    void acquireOrWait() throws SQLException, InterruptedException {
+        long deadline = System.currentTimeMillis() + upgradeConfiguration.getLockWaitTimeoutMillis();
+        long backoff = upgradeConfiguration.getLockPollMillis();
+        try {
+            while (true) {
+                String current = readValue();
+                if ((current == null || isExpired(current)) && tryAcquire()) {
+                    startRenewal();
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new SQLException("Timeout waiting for the upgrade lock " + lockKey + ", it's held by " + getHolder(current));
+                }
+                log.info("Upgrade lock " + lockKey + " is held by " + getHolder(current) + ", wait for it to finish the upgrade");
+                // full jitter, so the waiting nodes don't poll at the same time
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+                backoff = Math.min(backoff * 2, upgradeConfiguration.getLockMaxPollMillis());
+            }
+        }
+        catch (SQLException | InterruptedException | RuntimeException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Try once to insert the lock, or take it over if it's expired. The renewal is not started.
+     */
+    synchronized boolean tryAcquire() throws SQLException {
+        String newValue = newValue();
+        long newExpiresAt = getExpireTime(newValue);
+        Connection conn = getConnection();
+        String current = SqlHelperUtils.query(conn, "select value from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                + " where key_name = ?", rs -> rs.getString(1), lockKey);
+        if (current == null) {
+            try {
+                SqlHelperUtils.executeUpdate(conn, "insert into " + upgradeConfiguration.getUpgradeConfigurationTable()
+                        + "(key_name, value) values (?, ?)", lockKey, newValue);
+            }
+            catch (SQLException e) {
+                // another node inserted it at the same time, the unique key decides
+                log.fine("Failed to insert upgrade lock " + lockKey + ": " + e.getMessage());
+                return false;
+            }
+        }
+        else if (isExpired(current)) {
+            if (!compareAndSet(conn, current, newValue)) {
+                return false;
+            }
+            log.warning("Took over the expired upgrade lock " + lockKey + " from " + getHolder(current));
+        }
+        else {
+            return false;
+        }
+        value = newValue;
+        expiresAt = newExpiresAt;
+        lost = false;
+        log.info("Acquired upgrade lock " + lockKey + " as " + holder);
+        return true;
+    }
+
+    /**
+     * Extend the lease.
+     *
+     * @return false if the lock is lost, eg: the lease expired and another node took it over
+     */
+    synchronized boolean renew() throws SQLException {
+        if (isLost()) {
+            return false;
+        }
+        String newValue = newValue();
+        long newExpiresAt = getExpireTime(newValue);
+        if (compareAndSet(getConnection(), value, newValue)) {
+            value = newValue;
+            // the update may have waited past the expire time, then the upgrade may have seen the lock as lost already
+            if (!isLost()) {
+                expiresAt = newExpiresAt;
+                return true;
+            }
+            return false;
+        }
+        lost = true;
+        log.severe("Lost upgrade lock " + lockKey + ", the lease expired and it's taken by another node");
+        return false;
+    }
+
+    /**
+     * @return true if the lease couldn't be renewed before it expired, the upgrade should stop committing
+     */
+    boolean isLost() {
+        if (!lost && value != null && System.currentTimeMillis() >= expiresAt) {
+            lost = true;
+            log.severe("Lost upgrade lock " + lockKey + ", the lease expired before it's renewed");
+        }
+        return lost;
+    }
+
+    void startRenewal() {
+        long period = Math.max(1, upgradeConfiguration.getLockLeaseMillis() / 3);
+        renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("dbupgrader-" + name + "-lock").setDaemon(true).build());
+        renewer.scheduleWithFixedDelay(() -> {
+            try {
+                if (!renew()) {
+                    renewer.shutdown();
+                }
+            }
+            catch (SQLException | RuntimeException e) {
+                // the lease may still be valid, retry on the next period
+                log.warning("Failed to renew upgrade lock " + lockKey + ": " + e.getMessage());
+                if (isLost()) {
+                    renewer.shutdown();
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop renewing, delete the lock if it's still held by this node and close the connection of the lock.
+     */
+    synchronized void release() {
+        if (renewer != null) {
+            renewer.shutdownNow();
+        }
+        try {
+            // compare-and-set on the value, a lock taken over by another node is kept
+            if (value != null) {
+                SqlHelperUtils.executeUpdate(getConnection(), "delete from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                        + " where key_name = ? and value = ?", lockKey, value);
+                log.info("Released upgrade lock " + lockKey);
+            }
+        }
+        catch (SQLException e) {
+            // it expires by itself
+            log.warning("Failed to release upgrade lock " + lockKey + ": " + e.getMessage());
+        }
+        finally {
+            value = null;
+            SqlHelperUtils.closeQuietly(conn);
+            conn = null;
+        }
+    }
+
+    private synchronized String readValue() throws SQLException {
+        return SqlHelperUtils.query(getConnection(), "select value from " + upgradeConfiguration.getUpgradeConfigurationTable()
+                + " where key_name = ?", rs -> rs.getString(1), lockKey);
+    }
+
+    /**
+     * @return the connection of the lock, it's taken on the first use and kept until {@link #release()}
+     */
+    private Connection getConnection() throws SQLException {
+        if (conn == null) {
+            Connection newConn = dataSource.getConnection();
+            try {
+                newConn.setAutoCommit(true);
+            }
+            catch (SQLException e) {
+                SqlHelperUtils.closeQuietly(newConn);
+                throw e;
+            }
+            conn = newConn;
+        }
+        return conn;
+    }
+
+    private boolean compareAndSet(Connection conn, String expected, String newValue) throws SQLException {
+        return SqlHelperUtils.executeUpdate(conn, "update " + upgradeConfiguration.getUpgradeConfigurationTable()
+                + " set value = ? where key_name = ? and value = ?", newValue, lockKey, expected) == 1;
+    }
+
+    private String newValue() {
+        return holder + SEPARATOR + (System.currentTimeMillis() + upgradeConfiguration.getLockLeaseMillis());
+    }
+
+    private static boolean isExpired(String value) {
+        return getExpireTime(value) < System.currentTimeMillis();
+    }
+
+    /**
+     * @return 0 for a broken value, so it's treated as expired and can be taken over
+     */
+    private static long getExpireTime(String value) {
+        int index = value.lastIndexOf(SEPARATOR);
+        try {
+            return index < 0 ? 0 : Long.parseLong(value.substring(index + 1));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String getHolder(String value) {
+        if (value == null) {
+            return null;
+        }
+        int index = value.lastIndexOf(SEPARATOR);
+        return index < 0 ? value : value.substring(0, index);
+    }
+}
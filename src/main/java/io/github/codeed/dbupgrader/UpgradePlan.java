@@ -0,0 +1,102 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.scan.*;
+import io.github.codeed.dbupgrader.utils.*;
+import lombok.extern.java.*;
+import org.apache.commons.lang3.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The scanned upgrade classes grouped by version (skip classes excluded) and their execution order.
+ * It only depends on {@link UpgradeConfiguration}, not on the database, so one plan is shared by all tenants of
+ * {@link DbUpgrader#upgradeAll(Map, UpgradeConfiguration)}. It's immutable after creation and safe to use from many threads.
+ */
+@Log
+class UpgradePlan {
+    private final String upgradeClassPackage;
+    private final TreeMap<Integer, Map<String, UpgradeDescriptor>> upgrades;
+    private final Map<Integer, List<List<String>>> sequentialOrders = new ConcurrentHashMap<>();
+    private final Map<Integer, List<List<String>>> parallelOrders = new ConcurrentHashMap<>();
+
+    private UpgradePlan(String upgradeClassPackage, TreeMap<Integer, Map<String, UpgradeDescriptor>> upgrades) {
+        this.upgradeClassPackage = upgradeClassPackage;
+        this.upgrades = upgrades;
+    }
+
+    static UpgradePlan create(UpgradeConfiguration upgradeConfiguration) throws IOException, ClassNotFoundException {
+        List<UpgradeDescriptor> scanned = UpgradeScanner.scan(upgradeConfiguration.getUpgradeClassPackage(),
+                upgradeConfiguration.getScanMode());
+        TreeMap<Integer, Map<String, UpgradeDescriptor>> upgradeList = new TreeMap<>();
+        for (UpgradeDescriptor upgrade : scanned) {
+            if (upgradeConfiguration.getSkipClasses().contains(upgrade.getCanonicalName())) {
+                log.info("Skip upgrade class because of configruation:" + upgrade.getCanonicalName());
+                continue;
+            }
+            upgradeList.computeIfAbsent(upgrade.getVersion(), k -> new HashMap<>()).put(upgrade.getClassName(), upgrade);
+        }
+        return new UpgradePlan(upgradeConfiguration.getUpgradeClassPackage(), upgradeList);
+    }
+
+    int getVersionCount() {
+        return upgrades.size();
+    }
+
+    /**
+     * @return the upgrades of the version, key is the full class name. null if there is no upgrade of the version.
+     */
+    Map<String, UpgradeDescriptor> getUpgrades(int version) {
+        return upgrades.get(version);
+    }
+
+    /**
+     * @return versions less than the given version, in descending order
+     */
+    NavigableSet<Integer> getVersionsBefore(int version) {
+        return upgrades.headMap(version, false).descendingKeySet();
+    }
+
+    /**
+     * The execution order of the upgrades of a version, computed once per version.
+     * @param parallel if true, each level only depends on previous levels and its classes can run at the same time,
+     *                 otherwise there is a single level which runs one by one.
+     */
+    List<List<String>> getLevels(int version, boolean parallel) {
+        Map<Integer, List<List<String>>> orders = parallel ? parallelOrders : sequentialOrders;
+        return orders.computeIfAbsent(version, ver -> {
+            Map<String, Set<String>> graph = buildGraph(upgrades.get(ver));
+            try {
+                return parallel ? TopologicalSort.levels(graph) : Collections.singletonList(TopologicalSort.sort(graph));
+            }
+            catch (IllegalArgumentException e) {
+                throw new RuntimeException("Circular dependency detected in upgrade classes for version " + ver + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * The edges come from the scanned {@link UpgradeDescriptor}s, no class is loaded to plan the version.
+     */
+    private Map<String, Set<String>> buildGraph(Map<String, UpgradeDescriptor> upgradesOfVersion) {
+        // Build dependency graph
+        Map<String, Set<String>> graph = new HashMap<>(upgradesOfVersion.size() * 2);
+
+        // Initialize graph with all classes
+        for (UpgradeDescriptor upgrade : upgradesOfVersion.values()) {
+            String className = upgrade.getClassName();
+            graph.put(className, new HashSet<>(2));
+
+            // Add dependencies based on after() annotation
+            String afterClass = upgrade.getAfter();
+            if (StringUtils.isNotEmpty(afterClass)) {
+                String after = upgradeClassPackage + "." + afterClass;
+                if (upgradesOfVersion.containsKey(after)) {
+                    graph.get(className).add(after);
+                }
+            }
+        }
+        return graph;
+    }
+}
@@ -0,0 +1,181 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.stats.*;
+import lombok.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * What one {@link DbUpgrader#upgrade()} run did: wall time of each version and each upgrade class, the SQL statistics of
+ * each class and of each sql shape. Async upgrades are added to their version when they finish, see {@link #getAsyncUpgrades()}.
+ */
+@Getter
+public class UpgradeReport {
+    private final String name;
+    private final List<VersionReport> versions = new CopyOnWriteArrayList<>();
+    /**
+     * true if nothing is done because the database is up to date, or it's upgraded by another node
+     */
+    private boolean skipped;
+    private long durationMillis;
+    private AsyncUpgradeHandle asyncUpgrades = AsyncUpgradeHandle.empty();
+    @Getter(AccessLevel.NONE)
+    private final SqlStatementRegistry sqlRegistry;
+    /**
+     * null unless it's a rehearsal
+     */
+    @Getter(AccessLevel.NONE)
+    private final RehearsalRecorder rehearsal;
+
+    UpgradeReport(String name, SqlStatementRegistry sqlRegistry, RehearsalRecorder rehearsal) {
+        this.name = name;
+        this.sqlRegistry = sqlRegistry;
+        this.rehearsal = rehearsal;
+    }
+
+    static UpgradeReport skipped(String name) {
+        UpgradeReport report = new UpgradeReport(name, null, null);
+        report.skipped = true;
+        return report;
+    }
+
+    VersionReport addVersion(int version) {
+        VersionReport report = new VersionReport(version);
+        versions.add(report);
+        return report;
+    }
+
+    void finish(long durationNanos, AsyncUpgradeHandle asyncUpgrades) {
+        this.durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        this.asyncUpgrades = asyncUpgrades;
+    }
+
+    /**
+     * @return all executed classes of all versions
+     */
+    public List<ClassReport> getClasses() {
+        List<ClassReport> classes = new ArrayList<>();
+        versions.forEach(version -> classes.addAll(version.getClasses()));
+        return classes;
+    }
+
+    /**
+     * The statistics of each sql shape (the sql with its literals replaced by ?), sorted by the total time desc.
+     * It's a snapshot, call it again after the async upgrades finished to include them.
+     */
+    public List<SqlShapeStats> getSqlStatements() {
+        return sqlRegistry == null ? Collections.emptyList() : sqlRegistry.getShapes();
+    }
+
+    /**
+     * true if nothing is committed, see {@link UpgradeConfiguration#isRehearsal()}
+     */
+    public boolean isRehearsal() {
+        return rehearsal != null;
+    }
+
+    /**
+     * The statements run by the upgrade classes of a rehearsal in the order they ran, including the refused ones.
+     * Empty if it's not a rehearsal.
+     */
+    public List<RehearsalRecorder.RecordedStatement> getRehearsedStatements() {
+        return rehearsal == null ? Collections.emptyList() : rehearsal.getStatements();
+    }
+
+    /**
+     * A text of the rehearsal to review before the real upgrade: each class with its result and its statements.
+     */
+    public String describeRehearsal() {
+        StringBuilder text = new StringBuilder("Rehearsal of " + name + ", nothing is committed");
+        Map<String, List<RehearsalRecorder.RecordedStatement>> statements = new HashMap<>();
+        for (RehearsalRecorder.RecordedStatement statement : getRehearsedStatements()) {
+            statements.computeIfAbsent(statement.getClassName(), k -> new ArrayList<>()).add(statement);
+        }
+        for (ClassReport classReport : getClasses()) {
+            text.append("\n").append(classReport);
+            for (RehearsalRecorder.RecordedStatement statement : statements.getOrDefault(classReport.getClassName(),
+                    Collections.emptyList())) {
+                text.append("\n    ").append(statement.toString().replace("\n", "\n        "));
+            }
+        }
+        return text.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "UpgradeReport{name=" + name + ", skipped=" + skipped + ", duration=" + durationMillis + "ms, versions=" + versions + "}";
+    }
+
+    @Getter
+    public static class VersionReport {
+        private final int version;
+        private final List<ClassReport> classes = new CopyOnWriteArrayList<>();
+        private long durationMillis;
+        /**
+         * from the start of the version to its commit, the rows changed by the version are locked during this time.
+         * For parallel upgrades, it's the longest level
+         */
+        private long transactionHoldMillis;
+
+        VersionReport(int version) {
+            this.version = version;
+        }
+
+        void finish(long durationNanos, long transactionHoldNanos) {
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            this.transactionHoldMillis = TimeUnit.NANOSECONDS.toMillis(transactionHoldNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "{version=" + version + ", duration=" + durationMillis + "ms, transactionHold=" + transactionHoldMillis
+                    + "ms, classes=" + classes + "}";
+        }
+    }
+
+    @Getter
+    public static class ClassReport {
+        private final String className;
+        private final int version;
+        private final boolean async;
+        private final long durationMillis;
+        private final long statementCount;
+        private final long sqlTimeMillis;
+        private final long insertedRows;
+        private final long updatedRows;
+        private final long deletedRows;
+        /**
+         * why the class failed in a rehearsal, null if it succeeded
+         */
+        private final String error;
+
+        ClassReport(UpgradeDescriptor descriptor, long durationNanos, SqlExecutionStats stats) {
+            this(descriptor, durationNanos, stats, null);
+        }
+
+        ClassReport(UpgradeDescriptor descriptor, long durationNanos, SqlExecutionStats stats, String error) {
+            this.className = descriptor.getClassName();
+            this.version = descriptor.getVersion();
+            this.async = descriptor.isAsync();
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+            this.statementCount = stats == null ? 0 : stats.getStatementCount();
+            this.sqlTimeMillis = stats == null ? 0 : TimeUnit.NANOSECONDS.toMillis(stats.getSqlTimeNanos());
+            this.insertedRows = stats == null ? 0 : stats.getInsertedRecords();
+            this.updatedRows = stats == null ? 0 : stats.getUpdatedRecords();
+            this.deletedRows = stats == null ? 0 : stats.getDeletedRecords();
+            this.error = error;
+        }
+
+        public long getAffectedRows() {
+            return insertedRows + updatedRows + deletedRows;
+        }
+
+        @Override
+        public String toString() {
+            return "{class=" + className + ", duration=" + durationMillis + "ms, statements=" + statementCount + ", sqlTime="
+                    + sqlTimeMillis + "ms, inserted=" + insertedRows + ", updated=" + updatedRows + ", deleted=" + deletedRows
+                    + (error == null ? "" : ", error=" + error) + "}";
+        }
+    }
+}
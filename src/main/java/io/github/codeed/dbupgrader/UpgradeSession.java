@@ -0,0 +1,166 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.stats.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import javax.sql.*;
+import java.sql.*;
+
+/**
+ * State of one {@link DbUpgrader#upgrade()} run.
+ * It takes one connection from the data source, wraps it for statistics once and reuses it for the setup and all versions.
+ * Each version commits on it by {@link #commit()}.
+ */
+class UpgradeSession {
+    private final StatisticsTrackingConnection connection;
+    private final SqlExecutionStats stats;
+    private final AsyncUpgradeEngine asyncEngine;
+    /**
+     * null if {@link UpgradeConfiguration#isClusterLock()} is off
+     */
+    private final UpgradeLock lock;
+    private final SqlStatementRegistry sqlRegistry;
+    /**
+     * null if {@link UpgradeConfiguration#isSchemaSnapshot()} is off
+     */
+    private final SchemaSnapshot schemaSnapshot;
+    /**
+     * null if {@link UpgradeConfiguration#isCoalesceDdl()} is off
+     */
+    private final DdlCoalescer ddlCoalescer;
+    /**
+     * null if {@link UpgradeConfiguration#getDdlLockWaitTimeoutSeconds()} is off
+     */
+    private final DdlExecutionPolicy ddlExecutionPolicy;
+    /**
+     * null if {@link UpgradeConfiguration#isRehearsal()} is off
+     */
+    private final RehearsalRecorder rehearsal;
+    private final UpgradeReport report;
+    private UpgradeHistorySnapshot history;
+
+    private UpgradeSession(String name, Connection raw, UpgradeConfiguration upgradeConfiguration, AsyncUpgradeEngine asyncEngine,
+                           UpgradeLock lock) {
+        this.sqlRegistry = new SqlStatementRegistry(upgradeConfiguration.getSlowSqlThresholdMillis());
+        this.schemaSnapshot = upgradeConfiguration.isSchemaSnapshot() ? new SchemaSnapshot() : null;
+        // a rehearsal refuses the DDL in the upgrade class which issued it
+        this.ddlCoalescer = upgradeConfiguration.isCoalesceDdl() && !upgradeConfiguration.isRehearsal() ? new DdlCoalescer() : null;
+        this.ddlExecutionPolicy = upgradeConfiguration.ddlExecutionPolicy();
+        this.rehearsal = upgradeConfiguration.isRehearsal() ? new RehearsalRecorder(upgradeConfiguration.isRehearsalExplain()) : null;
+        this.report = new UpgradeReport(name, sqlRegistry, rehearsal);
+        this.connection = wrap(raw, true);
+        this.stats = connection.getStats();
+        this.asyncEngine = asyncEngine;
+        this.lock = lock;
+    }
+
+    static UpgradeSession open(String name, DataSource dataSource, UpgradeConfiguration upgradeConfiguration, UpgradeLock lock)
+            throws SQLException {
+        Connection raw = dataSource.getConnection();
+        try {
+            raw.setAutoCommit(false);
+            return new UpgradeSession(name, raw, upgradeConfiguration, new AsyncUpgradeEngine(name, upgradeConfiguration), lock);
+        }
+        catch (SQLException | RuntimeException e) {
+            SqlHelperUtils.closeQuietly(raw);
+            throw e;
+        }
+    }
+
+    StatisticsTrackingConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Wrap a connection of the run for statistics. All connections of the run, including the parallel and async upgrades, share
+     * the sql statistics and the schema snapshot.
+     *
+     * @param coalesceDdl false for the async upgrades, they don't end with the version
+     */
+    StatisticsTrackingConnection wrap(Connection raw, boolean coalesceDdl) {
+        StatisticsTrackingConnection conn = new StatisticsTrackingConnection(raw, sqlRegistry);
+        conn.setSchemaSnapshot(schemaSnapshot);
+        conn.setDdlExecutionPolicy(ddlExecutionPolicy);
+        conn.setRehearsal(rehearsal);
+        if (coalesceDdl) {
+            conn.setDdlCoalescer(ddlCoalescer);
+        }
+        return conn;
+    }
+
+    /**
+     * Add the columns queued in the version, one ALTER for each table.
+     */
+    void flushDdl() throws SQLException {
+        if (ddlCoalescer != null) {
+            ddlCoalescer.flush(connection);
+        }
+    }
+
+    AsyncUpgradeEngine getAsyncEngine() {
+        return asyncEngine;
+    }
+
+    UpgradeReport getReport() {
+        return report;
+    }
+
+    UpgradeHistorySnapshot getHistory() {
+        return history;
+    }
+
+    void loadHistory(UpgradeConfiguration upgradeConfiguration) throws SQLException {
+        history = UpgradeHistorySnapshot.load(connection, upgradeConfiguration);
+    }
+
+    /**
+     * Write the pending history records and commit the current version.
+     * It refuses to commit if the cluster lock is lost, as another node may be upgrading now.
+     */
+    void commit() throws SQLException {
+        checkLock();
+        if (history != null) {
+            history.flush(connection);
+        }
+        connection.commit();
+        if (history != null) {
+            history.commit();
+        }
+        resetStats();
+    }
+
+    /**
+     * Fail if the cluster lock is lost, call it before committing on any connection of the run.
+     */
+    void checkLock() throws SQLException {
+        if (lock != null && lock.isLost()) {
+            throw new SQLException("The upgrade lock is lost, stop upgrading");
+        }
+    }
+
+    void rollback() {
+        SqlHelperUtils.rollbackQuietly(connection);
+        if (ddlCoalescer != null) {
+            ddlCoalescer.clear();
+        }
+        if (history != null) {
+            history.rollback();
+        }
+        resetStats();
+    }
+
+    /**
+     * Release the connection and stop accepting async upgrades.
+     * @return the handle of the async upgrades submitted in this session
+     */
+    AsyncUpgradeHandle close() {
+        SqlHelperUtils.closeQuietly(connection);
+        return asyncEngine.shutdown();
+    }
+
+    private void resetStats() {
+        if (stats != null) {
+            stats.reset();
+        }
+    }
+}
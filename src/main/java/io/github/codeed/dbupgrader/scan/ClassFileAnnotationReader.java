@@ -0,0 +1,241 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Reads the {@link DbUpgrade} annotation from the bytes of a class file without loading the class.
+ * Only the constant pool and the RuntimeVisibleAnnotations attribute of the class are parsed.
+ * see: https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html
+ */
+public class ClassFileAnnotationReader {
+    private static final String DB_UPGRADE_DESCRIPTOR = "L" + DbUpgrade.class.getName().replace('.', '/') + ";";
+    private static final String RUNTIME_VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private final ByteBuffer buffer;
+    /**
+     * offset of each constant pool entry, the tag is at the offset
+     */
+    private int[] constantOffsets;
+
+    private ClassFileAnnotationReader(byte[] classFile) {
+        this.buffer = ByteBuffer.wrap(classFile);
+    }
+
+    /**
+     * @return null if the class is not annotated with {@link DbUpgrade}
+     */
+    public static UpgradeDescriptor read(byte[] classFile) {
+        try {
+            return new ClassFileAnnotationReader(classFile).readDescriptor();
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid class file", e);
+        }
+    }
+
+    private UpgradeDescriptor readDescriptor() {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Invalid class file");
+        }
+        // minor and major version
+        skip(4);
+        if (!readConstantPool()) {
+            // the annotation type isn't referenced at all, the most common case
+            return null;
+        }
+        // access flags
+        skip(2);
+        String className = utf8(classNameIndex(u2())).replace('/', '.');
+        // super class
+        skip(2);
+        skip(u2() * 2);
+        // fields and methods
+        skipMembers();
+        skipMembers();
+
+        int attributeCount = u2();
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = utf8(u2());
+            int length = buffer.getInt();
+            if (!RUNTIME_VISIBLE_ANNOTATIONS.equals(attributeName)) {
+                skip(length);
+                continue;
+            }
+            int annotationCount = u2();
+            for (int j = 0; j < annotationCount; j++) {
+                String type = utf8(u2());
+                if (DB_UPGRADE_DESCRIPTOR.equals(type)) {
+                    return readDbUpgrade(className);
+                }
+                skipAnnotationPairs();
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the pool references {@link DbUpgrade}
+     */
+    private boolean readConstantPool() {
+        int count = u2();
+        constantOffsets = new int[count];
+        boolean referenced = false;
+        for (int i = 1; i < count; i++) {
+            constantOffsets[i] = buffer.position();
+            int tag = u1();
+            switch (tag) {
+                case 1:
+                    int length = u2();
+                    if (!referenced && length == DB_UPGRADE_DESCRIPTOR.length()) {
+                        referenced = DB_UPGRADE_DESCRIPTOR.equals(utf8At(constantOffsets[i]));
+                    }
+                    skip(length);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    skip(4);
+                    break;
+                case 5: case 6:
+                    // long and double take two entries
+                    skip(8);
+                    i++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20:
+                    skip(2);
+                    break;
+                case 15:
+                    skip(3);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+        return referenced;
+    }
+
+    private UpgradeDescriptor readDbUpgrade(String className) {
+        Integer version = null;
+        String after = (String) defaultValue("after");
+        int maxAffectRecords = (Integer) defaultValue("maxAffectRecords");
+        DbUpgrade.ExecutionMode executionMode = (DbUpgrade.ExecutionMode) defaultValue("executionMode");
+
+        int pairCount = u2();
+        for (int i = 0; i < pairCount; i++) {
+            String name = utf8(u2());
+            int tag = u1();
+            switch (name) {
+                case "version":
+                    version = integer(u2());
+                    break;
+                case "after":
+                    after = utf8(u2());
+                    break;
+                case "maxAffectRecords":
+                    maxAffectRecords = integer(u2());
+                    break;
+                case "executionMode":
+                    // enum type, then the constant name
+                    skip(2);
+                    executionMode = DbUpgrade.ExecutionMode.valueOf(utf8(u2()));
+                    break;
+                default:
+                    skipElementValue(tag);
+            }
+        }
+        if (version == null) {
+            throw new IllegalArgumentException("No version found in @DbUpgrade of " + className);
+        }
+        return new UpgradeDescriptor(className, version, after, maxAffectRecords, executionMode);
+    }
+
+    private static Object defaultValue(String attribute) {
+        try {
+            return DbUpgrade.class.getMethod(attribute).getDefaultValue();
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void skipMembers() {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            // access flags, name and descriptor
+            skip(6);
+            skipAttributes();
+        }
+    }
+
+    private void skipAttributes() {
+        int count = u2();
+        for (int i = 0; i < count; i++) {
+            skip(2);
+            skip(buffer.getInt());
+        }
+    }
+
+    private void skipAnnotationPairs() {
+        int pairCount = u2();
+        for (int i = 0; i < pairCount; i++) {
+            skip(2);
+            skipElementValue(u1());
+        }
+    }
+
+    private void skipElementValue(int tag) {
+        switch (tag) {
+            case 'e':
+                skip(4);
+                break;
+            case '@':
+                // annotation type
+                skip(2);
+                skipAnnotationPairs();
+                break;
+            case '[':
+                int count = u2();
+                for (int i = 0; i < count; i++) {
+                    skipElementValue(u1());
+                }
+                break;
+            default:
+                // constants and class
+                skip(2);
+        }
+    }
+
+    private int classNameIndex(int classIndex) {
+        return buffer.getShort(constantOffsets[classIndex] + 1) & 0xFFFF;
+    }
+
+    private int integer(int index) {
+        return buffer.getInt(constantOffsets[index] + 1);
+    }
+
+    private String utf8(int index) {
+        return utf8At(constantOffsets[index]);
+    }
+
+    private String utf8At(int offset) {
+        int length = buffer.getShort(offset + 1) & 0xFFFF;
+        // modified utf8 only differs for \0 and supplementary characters, which don't exist in the names we read
+        return new String(buffer.array(), offset + 3, length, StandardCharsets.UTF_8);
+    }
+
+    private int u1() {
+        return buffer.get() & 0xFF;
+    }
+
+    private int u2() {
+        return buffer.getShort() & 0xFFFF;
+    }
+
+    private void skip(int bytes) {
+        // cast for java 8, ByteBuffer#position(int) returns ByteBuffer since java 9
+        ((Buffer) buffer).position(buffer.position() + bytes);
+    }
+}
@@ -0,0 +1,73 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+
+import javax.annotation.processing.*;
+import javax.lang.model.*;
+import javax.lang.model.element.*;
+import javax.tools.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Generates {@link UpgradeIndex#INDEX_LOCATION} for all {@link DbUpgrade} classes of the compilation,
+ * so {@link io.github.codeed.dbupgrader.DbUpgrader} doesn't need to scan the classpath.
+ * It's registered by META-INF/services, but the build has to run it: gradle 5+ only runs the processors of the
+ * {@code annotationProcessor} configuration, maven only the ones of {@code annotationProcessorPaths} when it's set, and javac 23+
+ * doesn't run the ones on the classpath without {@code -proc:full}. Without the index the classpath is scanned, with a warning.
+ */
+@SupportedAnnotationTypes("io.github.codeed.dbupgrader.DbUpgrade")
+public class DbUpgradeIndexProcessor extends AbstractProcessor {
+    private final Map<String, String> entries = new TreeMap<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getElementsAnnotatedWith(DbUpgrade.class)) {
+            // same as Class#getDeclaredAnnotation used by the classpath scanning, skip the inherited ones
+            if (element.getKind() != ElementKind.CLASS || element.getModifiers().contains(Modifier.ABSTRACT)
+                    || !isDeclared(element)) {
+                continue;
+            }
+            TypeElement type = (TypeElement) element;
+            DbUpgrade upgrade = type.getAnnotation(DbUpgrade.class);
+            String className = processingEnv.getElementUtils().getBinaryName(type).toString();
+            entries.put(className, UpgradeIndex.format(className, upgrade.version(), upgrade.after(), upgrade.maxAffectRecords(),
+                    upgrade.executionMode()));
+        }
+        if (roundEnv.processingOver() && !entries.isEmpty()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    private boolean isDeclared(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().toString().equals(DbUpgrade.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", UpgradeIndex.INDEX_LOCATION);
+            try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+                writer.write("# generated by " + DbUpgradeIndexProcessor.class.getName() + "\n");
+                for (String entry : entries.values()) {
+                    writer.write(entry);
+                    writer.write("\n");
+                }
+            }
+        }
+        catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write " + UpgradeIndex.INDEX_LOCATION + ": " + e);
+        }
+    }
+}
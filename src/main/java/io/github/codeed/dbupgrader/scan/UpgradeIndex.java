@@ -0,0 +1,73 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * The index of {@link DbUpgrade} classes generated at build time by {@link DbUpgradeIndexProcessor}.
+ * Each jar or class directory has its own index file, one upgrade class per line:
+ * <pre>
+ * className	version	after	maxAffectRecords	executionMode
+ * </pre>
+ */
+public class UpgradeIndex {
+    public static final String INDEX_LOCATION = "META-INF/dbupgrader/upgrade.index";
+    private static final String SEPARATOR = "\t";
+
+    /**
+     * Read the upgrades under the package (and its sub packages) from all index files of the classpath.
+     * The jars and class directories without an index file (eg: compiled without the processor) are not covered, the caller
+     * scans them.
+     *
+     * @return key is the classpath root of the index file, see {@link #getRoot(URL, String)}. Empty if no index file is found.
+     */
+    public static Map<String, List<UpgradeDescriptor>> read(ClassLoader classLoader, String packageName) throws IOException {
+        String prefix = packageName + ".";
+        Map<String, List<UpgradeDescriptor>> descriptors = new LinkedHashMap<>();
+        for (URL resource : Collections.list(classLoader.getResources(INDEX_LOCATION))) {
+            List<UpgradeDescriptor> rootDescriptors = descriptors.computeIfAbsent(getRoot(resource, INDEX_LOCATION),
+                    k -> new ArrayList<>());
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(resource.openStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.startsWith("#") || !line.startsWith(prefix)) {
+                        continue;
+                    }
+                    rootDescriptors.add(parse(line));
+                }
+            }
+        }
+        return descriptors;
+    }
+
+    /**
+     * The classpath root of a resource, eg: {@code file:/app/classes/} or {@code jar:file:/app/lib/upgrades.jar!/}
+     *
+     * @param path the path of the resource under the root
+     */
+    public static String getRoot(URL resource, String path) {
+        String url = resource.toString();
+        if (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return url.endsWith(path) ? url.substring(0, url.length() - path.length()) : url;
+    }
+
+    static UpgradeDescriptor parse(String line) {
+        // keep the trailing empty values, eg: empty after
+        String[] parts = line.split(SEPARATOR, -1);
+        if (parts.length != 5) {
+            throw new IllegalArgumentException("Invalid upgrade index line: " + line);
+        }
+        return new UpgradeDescriptor(parts[0], Integer.parseInt(parts[1]), parts[2], Integer.parseInt(parts[3]),
+                DbUpgrade.ExecutionMode.valueOf(parts[4]));
+    }
+
+    static String format(String className, int version, String after, int maxAffectRecords, DbUpgrade.ExecutionMode executionMode) {
+        return String.join(SEPARATOR, className, String.valueOf(version), after, String.valueOf(maxAffectRecords), executionMode.name());
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process wide cache of the scanned upgrade classes, shared by all {@link DbUpgrader} instances.
+ * eg: the starter creates one DbUpgrader per data source, the same package in the same jar is only scanned once.
+ * <p>
+ * The entries are grouped by class loader and dropped with it (hot redeploy), and each entry is keyed by package, scan mode
+ * and classpath url. An entry is reloaded when the fingerprint of the package under the url changed.
+ * The cached descriptors don't hold the upgrade classes, so the cache never keeps a class loader alive.
+ */
+public class UpgradeScanCache {
+    private static final Map<ClassLoader, Map<String, Entry>> CACHE = new WeakHashMap<>();
+
+    @FunctionalInterface
+    interface Loader {
+        List<UpgradeDescriptor> load() throws IOException, ClassNotFoundException;
+    }
+
+    private static class Entry {
+        private final String fingerprint;
+        private final CompletableFuture<List<UpgradeDescriptor>> descriptors = new CompletableFuture<>();
+
+        private Entry(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    /**
+     * Drop all cached scans.
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    /**
+     * Get the cached descriptors, or load them if the entry is missing or its fingerprint changed.
+     * Concurrent callers of the same key wait for the first one instead of scanning again.
+     */
+    static List<UpgradeDescriptor> get(ClassLoader classLoader, String key, String fingerprint, Loader loader) throws IOException,
+            ClassNotFoundException {
+        Entry entry;
+        boolean owner = false;
+        synchronized (CACHE) {
+            Map<String, Entry> entries = CACHE.computeIfAbsent(classLoader, k -> new HashMap<>());
+            entry = entries.get(key);
+            if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+                entry = new Entry(fingerprint);
+                entries.put(key, entry);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                entry.descriptors.complete(Collections.unmodifiableList(loader.load()));
+            }
+            catch (IOException | ClassNotFoundException | RuntimeException | Error e) {
+                remove(classLoader, key, entry);
+                entry.descriptors.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return entry.descriptors.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the scan of " + key);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            }
+            else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private static void remove(ClassLoader classLoader, String key, Entry entry) {
+        synchronized (CACHE) {
+            Map<String, Entry> entries = CACHE.get(classLoader);
+            if (entries != null && entries.get(key) == entry) {
+                entries.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+import lombok.extern.java.*;
+import org.apache.commons.io.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Finds the {@link DbUpgrade} classes of a package.
+ * The build time index {@link UpgradeIndex} is used for the jars and class directories which have one, the others (eg: an IDE
+ * build without the processor, or a second jar of the same package) are scanned by {@link UpgradeConfiguration.ScanMode}.
+ * The scan result of each classpath url is cached by {@link UpgradeScanCache}.
+ */
+@Log
+public class UpgradeScanner {
+    /**
+     * the scan reads jar entries and files, so it has its own small pool instead of the common pool
+     */
+    private static final int SCAN_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    public static List<UpgradeDescriptor> scan(String packageName, UpgradeConfiguration.ScanMode scanMode) throws IOException,
+            ClassNotFoundException {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Map<String, List<UpgradeDescriptor>> indexed = UpgradeIndex.read(classLoader, packageName);
+        // by class name, a class in two roots is taken from the first one like the class loader does
+        Map<String, UpgradeDescriptor> descriptors = new LinkedHashMap<>();
+        int indexedCount = 0;
+        for (List<UpgradeDescriptor> rootDescriptors : indexed.values()) {
+            for (UpgradeDescriptor descriptor : rootDescriptors) {
+                descriptors.putIfAbsent(descriptor.getClassName(), descriptor);
+            }
+            indexedCount += rootDescriptors.size();
+        }
+        if (indexedCount > 0) {
+            log.info("Found " + indexedCount + " upgrade classes from " + UpgradeIndex.INDEX_LOCATION);
+        }
+
+        String path = packageName.replace('.', '/');
+        for (URL resource : ReflectionUtils.getPackageResources(classLoader, packageName)) {
+            if (indexed.containsKey(UpgradeIndex.getRoot(resource, path))) {
+                continue;
+            }
+            if (!indexed.isEmpty()) {
+                log.warning(resource + " has no " + UpgradeIndex.INDEX_LOCATION + ", scan it. Is it compiled without the annotation "
+                        + "processor?");
+            }
+            String key = scanMode + ":" + packageName + ":" + resource;
+            for (UpgradeDescriptor descriptor : UpgradeScanCache.get(classLoader, key, ReflectionUtils.getResourceFingerprint(resource,
+                    packageName), () -> scanResource(classLoader, resource, packageName, scanMode))) {
+                descriptors.putIfAbsent(descriptor.getClassName(), descriptor);
+            }
+        }
+        return new ArrayList<>(descriptors.values());
+    }
+
+    private static List<UpgradeDescriptor> scanResource(ClassLoader classLoader, URL resource, String packageName,
+                                                        UpgradeConfiguration.ScanMode scanMode) throws IOException, ClassNotFoundException {
+        long start = System.currentTimeMillis();
+        Queue<UpgradeDescriptor> found = new ConcurrentLinkedQueue<>();
+        ReflectionUtils.ClassFileVisitor visitor;
+        if (scanMode == UpgradeConfiguration.ScanMode.CLASS_FILE) {
+            visitor = (className, classFile) -> {
+                UpgradeDescriptor descriptor = readClassFile(className, classFile.get());
+                if (descriptor != null) {
+                    found.add(descriptor);
+                }
+            };
+        }
+        else {
+            visitor = (className, classFile) -> {
+                // not initialized, the static initializers of the classes would run concurrently and may deadlock each other
+                Class<?> c = Class.forName(className, false, classLoader);
+                DbUpgrade upgrade = c.getDeclaredAnnotation(DbUpgrade.class);
+                if (upgrade != null) {
+                    // the cache keeps the attributes only, not the class
+                    found.add(new UpgradeDescriptor(c.getName(), upgrade.version(), upgrade.after(), upgrade.maxAffectRecords(),
+                            upgrade.executionMode()));
+                }
+            };
+        }
+        ForkJoinPool pool = new ForkJoinPool(SCAN_PARALLELISM);
+        try {
+            ReflectionUtils.visitClassFiles(resource, packageName, visitor, pool);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        // visited in parallel, keep the order stable
+        List<UpgradeDescriptor> descriptors = new ArrayList<>(found);
+        descriptors.sort(Comparator.comparing(UpgradeDescriptor::getClassName));
+        log.info("Scanned " + resource + " in " + (System.currentTimeMillis() - start) + "ms, found " + descriptors.size()
+                + " upgrade classes");
+        return descriptors;
+    }
+
+    static UpgradeDescriptor readClassFile(String className, InputStream classFile) throws IOException {
+        try (InputStream in = classFile) {
+            return ClassFileAnnotationReader.read(IOUtils.toByteArray(in));
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Failed to read class file of " + className, e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.codeed.dbupgrader.stats;
+
+import lombok.*;
+import lombok.extern.java.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Records every statement run by the upgrade classes of a rehearsal, with its time, affected rows and optionally its plan.
+ * The rehearsal runs in one transaction which is always rolled back, so the statements which would commit it (DDL, COMMIT,
+ * LOCK TABLES...) are refused before they run, and kept in the records as refused.
+ * Statements run outside of an upgrade class (eg: the upgrade tables) are neither recorded nor refused.
+ */
+@Log
+public class RehearsalRecorder {
+    private static final int MAX_RECORDED_SQL_LENGTH = 1_000;
+    private static final Pattern IMPLICIT_COMMIT = Pattern.compile("^\\s*(?:commit|begin|start\\s+transaction|lock\\s+tables?|" +
+            "unlock\\s+tables?|grant|revoke|set\\s+autocommit|set\\s+password|analyze|optimize|repair|flush)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern EXPLAINABLE = Pattern.compile("^\\s*\\(?\\s*(?:select|insert|update|delete|replace)\\b",
+            Pattern.CASE_INSENSITIVE);
+
+    private final boolean explain;
+    private final List<RecordedStatement> statements = new CopyOnWriteArrayList<>();
+    /**
+     * fingerprints already explained, each shape is explained once
+     */
+    private final Set<String> explained = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param explain run EXPLAIN for the first statement of each shape
+     */
+    public RehearsalRecorder(boolean explain) {
+        this.explain = explain;
+    }
+
+    /**
+     * Refuse the statement if it would commit the rehearsal.
+     *
+     * @param context the upgrade class running the sql, null if it's run by the upgrader itself
+     */
+    public void check(String sql, String context) throws SQLException {
+        if (context != null && commitsImplicitly(sql)) {
+            statements.add(new RecordedStatement(context, abbreviate(sql), 0, 0, null, true));
+            throw new SQLException("Rehearsal refuses the statement of " + context + ", it would commit the transaction: " + sql);
+        }
+    }
+
+    /**
+     * Refuse a commit of the connection by the upgrade class.
+     */
+    public void checkCommit(String context) throws SQLException {
+        if (context != null) {
+            statements.add(new RecordedStatement(context, "COMMIT", 0, 0, null, true));
+            throw new SQLException("Rehearsal refuses to commit the transaction by " + context);
+        }
+    }
+
+    /**
+     * @param conn       the raw connection to run EXPLAIN on, in the same transaction
+     * @param parameters the parameters of the prepared statement, null for a plain statement
+     */
+    public void record(Connection conn, String sql, List<Object> parameters, long elapsedNanos, long rows, String context) {
+        if (context == null) {
+            return;
+        }
+        String plan = null;
+        if (explain && EXPLAINABLE.matcher(sql).find() && explained.add(SqlFingerprint.of(sql))) {
+            plan = explain(conn, sql, parameters);
+        }
+        statements.add(new RecordedStatement(context, abbreviate(sql), TimeUnit.NANOSECONDS.toMicros(elapsedNanos), rows, plan, false));
+    }
+
+    /**
+     * @return the statements in the order they ran
+     */
+    public List<RecordedStatement> getStatements() {
+        return new ArrayList<>(statements);
+    }
+
+    public static boolean commitsImplicitly(String sql) {
+        return SqlType.of(sql) == SqlType.DDL || IMPLICIT_COMMIT.matcher(sql).find();
+    }
+
+    private String explain(Connection conn, String sql, List<Object> parameters) {
+        try (PreparedStatement ps = conn.prepareStatement("EXPLAIN " + sql)) {
+            if (parameters != null) {
+                for (int i = 0; i < parameters.size(); i++) {
+                    ps.setObject(i + 1, parameters.get(i));
+                }
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet rs = ps.executeQuery()) {
+                int columns = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    if (plan.length() > 0) {
+                        plan.append('\n');
+                    }
+                    for (int i = 1; i <= columns; i++) {
+                        plan.append(i > 1 ? " | " : "").append(rs.getMetaData().getColumnLabel(i)).append('=').append(rs.getString(i));
+                    }
+                }
+            }
+            return plan.toString();
+        }
+        catch (SQLException e) {
+            log.fine("Failed to explain " + sql + ": " + e.getMessage());
+            return "explain failed: " + e.getMessage();
+        }
+    }
+
+    private static String abbreviate(String sql) {
+        return sql.length() <= MAX_RECORDED_SQL_LENGTH ? sql : sql.substring(0, MAX_RECORDED_SQL_LENGTH) + "...";
+    }
+
+    @Getter
+    public static class RecordedStatement {
+        /**
+         * the upgrade class which ran it
+         */
+        private final String className;
+        private final String sql;
+        private final long elapsedMicros;
+        private final long rows;
+        /**
+         * the EXPLAIN output, one line per row. null if it's not explained
+         */
+        private final String plan;
+        /**
+         * true if it's not run because it would commit the rehearsal
+         */
+        private final boolean refused;
+
+        private RecordedStatement(String className, String sql, long elapsedMicros, long rows, String plan, boolean refused) {
+            this.className = className;
+            this.sql = sql;
+            this.elapsedMicros = elapsedMicros;
+            this.rows = rows;
+            this.plan = plan;
+            this.refused = refused;
+        }
+
+        @Override
+        public String toString() {
+            return (refused ? "REFUSED " : "") + "{class=" + className + ", time=" + elapsedMicros + "us, rows=" + rows + ", sql=" + sql
+                    + (plan == null ? "" : ", plan=\n" + plan) + "}";
+        }
+    }
+}
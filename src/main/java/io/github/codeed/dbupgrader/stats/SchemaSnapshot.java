@@ -0,0 +1,169 @@
+package io.github.codeed.dbupgrader.stats;
+
+import lombok.extern.java.*;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Tables, columns and indexes of the current catalog kept in memory, so the existence checks of
+ * {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils} don't query the metadata one by one.
+ * <p>
+ * The tables and columns are loaded by two bulk metadata queries on the first check. The indexes are loaded by one query of
+ * information_schema.statistics on mysql, or table by table on the first index check of other databases.
+ * A DDL running through a {@link StatisticsTrackingConnection} of the snapshot reloads its table on the next check, a DDL whose
+ * table isn't known (eg: RENAME) reloads the whole snapshot. DDL from other connections or processes isn't seen.
+ * It may be shared by the connections of one upgrade run. Names are compared case-insensitively.
+ */
+@Log
+public class SchemaSnapshot {
+    private String catalog;
+    /**
+     * key is the table name in lower case
+     */
+    private Map<String, TableMetadata> tables;
+    /**
+     * tables changed by DDL, they are reloaded on the next check
+     */
+    private final Set<String> changedTables = new HashSet<>();
+    private boolean indexesByTable;
+
+    private static class TableMetadata {
+        private final Set<String> columns = new HashSet<>();
+        /**
+         * null if not loaded yet
+         */
+        private Set<String> indexes;
+    }
+
+    public synchronized boolean tableExists(Connection conn, String tableName) throws SQLException {
+        return getTable(conn, tableName) != null;
+    }
+
+    public synchronized boolean columnExists(Connection conn, String tableName, String columnName) throws SQLException {
+        TableMetadata table = getTable(conn, tableName);
+        return table != null && table.columns.contains(columnName.toLowerCase(Locale.ROOT));
+    }
+
+    public synchronized boolean indexExists(Connection conn, String tableName, String indexName) throws SQLException {
+        TableMetadata table = getTable(conn, tableName);
+        if (table == null) {
+            return false;
+        }
+        if (table.indexes == null) {
+            table.indexes = loadIndexes(conn, tableName);
+        }
+        return table.indexes.contains(indexName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Called when a DDL runs through a connection of the snapshot.
+     */
+    public synchronized void onDdl(String sql) {
+        if (tables == null) {
+            return;
+        }
+        String table = SqlType.ddlTable(sql);
+        if (table == null) {
+            invalidateAll();
+        }
+        else {
+            changedTables.add(table);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        tables = null;
+        changedTables.clear();
+    }
+
+    private TableMetadata getTable(Connection conn, String tableName) throws SQLException {
+        String catalog = conn.getCatalog();
+        if (tables == null || !Objects.equals(this.catalog, catalog)) {
+            load(conn, catalog);
+        }
+        String key = tableName.toLowerCase(Locale.ROOT);
+        if (changedTables.remove(key)) {
+            reloadTable(conn, tableName, key);
+        }
+        return tables.get(key);
+    }
+
+    private void load(Connection conn, String catalog) throws SQLException {
+        long start = System.nanoTime();
+        Map<String, TableMetadata> loaded = new HashMap<>();
+        DatabaseMetaData metaData = conn.getMetaData();
+        try (ResultSet rs = metaData.getTables(catalog, null, "%", new String[]{"TABLE"})) {
+            while (rs.next()) {
+                loaded.put(rs.getString("TABLE_NAME").toLowerCase(Locale.ROOT), new TableMetadata());
+            }
+        }
+        try (ResultSet rs = metaData.getColumns(catalog, null, "%", "%")) {
+            while (rs.next()) {
+                TableMetadata table = loaded.get(rs.getString("TABLE_NAME").toLowerCase(Locale.ROOT));
+                if (table != null) {
+                    table.columns.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        String product = metaData.getDatabaseProductName();
+        indexesByTable = product == null || !(product.contains("MySQL") || product.contains("MariaDB"));
+        if (!indexesByTable) {
+            loaded.values().forEach(table -> table.indexes = new HashSet<>());
+            try (PreparedStatement ps = conn.prepareStatement(
+                    "select table_name, index_name from information_schema.statistics where table_schema = database()");
+                 ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    TableMetadata table = loaded.get(rs.getString(1).toLowerCase(Locale.ROOT));
+                    if (table != null) {
+                        table.indexes.add(rs.getString(2).toLowerCase(Locale.ROOT));
+                    }
+                }
+            }
+        }
+        this.catalog = catalog;
+        this.tables = loaded;
+        changedTables.clear();
+        log.fine("Loaded schema snapshot of " + loaded.size() + " tables in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    private void reloadTable(Connection conn, String tableName, String key) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        TableMetadata table = null;
+        try (ResultSet rs = metaData.getTables(catalog, null, tableName, new String[]{"TABLE"})) {
+            while (rs.next()) {
+                if (rs.getString("TABLE_NAME").equalsIgnoreCase(tableName)) {
+                    table = new TableMetadata();
+                }
+            }
+        }
+        if (table == null) {
+            tables.remove(key);
+            return;
+        }
+        try (ResultSet rs = metaData.getColumns(catalog, null, tableName, "%")) {
+            while (rs.next()) {
+                if (rs.getString("TABLE_NAME").equalsIgnoreCase(tableName)) {
+                    table.columns.add(rs.getString("COLUMN_NAME").toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        if (!indexesByTable) {
+            table.indexes = loadIndexes(conn, tableName);
+        }
+        tables.put(key, table);
+    }
+
+    private Set<String> loadIndexes(Connection conn, String tableName) throws SQLException {
+        Set<String> indexes = new HashSet<>();
+        try (ResultSet rs = conn.getMetaData().getIndexInfo(catalog, null, tableName, false, false)) {
+            while (rs.next()) {
+                String indexName = rs.getString("INDEX_NAME");
+                if (indexName != null) {
+                    indexes.add(indexName.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return indexes;
+    }
+}
@@ -1,38 +1,87 @@
 package io.github.codeed.dbupgrader.stats;
 
-import lombok.Getter;
+import java.util.concurrent.atomic.*;
 
-@Getter
+/**
+ * Statistics of the statements executed on one {@link StatisticsTrackingConnection}.
+ * The counters are 64 bits and can be updated from several threads.
+ */
 public class SqlExecutionStats {
-    private int updatedRecords = 0;
-    private int insertedRecords = 0;
-    private int deletedRecords = 0;
-    
-    public void addUpdatedRecords(int count) {
-        this.updatedRecords += count;
+    private final AtomicLong updatedRecords = new AtomicLong();
+    private final AtomicLong insertedRecords = new AtomicLong();
+    private final AtomicLong deletedRecords = new AtomicLong();
+    private final AtomicLong statementCount = new AtomicLong();
+    private final AtomicLong sqlTimeNanos = new AtomicLong();
+
+    public void addStatement(long elapsedNanos) {
+        this.statementCount.incrementAndGet();
+        this.sqlTimeNanos.addAndGet(elapsedNanos);
+    }
+
+    public void addRecords(SqlType type, long count) {
+        switch (type) {
+            case INSERT:
+                addInsertedRecords(count);
+                break;
+            case UPDATE:
+                addUpdatedRecords(count);
+                break;
+            case DELETE:
+                addDeletedRecords(count);
+                break;
+            default:
+                // ddl and others don't change records
+        }
+    }
+
+    public void addUpdatedRecords(long count) {
+        this.updatedRecords.addAndGet(count);
+    }
+
+    public void addInsertedRecords(long count) {
+        this.insertedRecords.addAndGet(count);
+    }
+
+    public void addDeletedRecords(long count) {
+        this.deletedRecords.addAndGet(count);
     }
-    
-    public void addInsertedRecords(int count) {
-        this.insertedRecords += count;
+
+    public long getUpdatedRecords() {
+        return updatedRecords.get();
     }
-    
-    public void addDeletedRecords(int count) {
-        this.deletedRecords += count;
+
+    public long getInsertedRecords() {
+        return insertedRecords.get();
     }
-    
-    public int getTotalAffectedRecords() {
-        return updatedRecords + insertedRecords + deletedRecords;
+
+    public long getDeletedRecords() {
+        return deletedRecords.get();
+    }
+
+    public long getStatementCount() {
+        return statementCount.get();
+    }
+
+    public long getSqlTimeNanos() {
+        return sqlTimeNanos.get();
+    }
+
+    public long getTotalAffectedRecords() {
+        return getUpdatedRecords() + getInsertedRecords() + getDeletedRecords();
     }
 
     public void reset() {
-        updatedRecords = 0;
-        insertedRecords = 0;
-        deletedRecords = 0;
+        updatedRecords.set(0);
+        insertedRecords.set(0);
+        deletedRecords.set(0);
+        statementCount.set(0);
+        sqlTimeNanos.set(0);
     }
 
     @Override
     public String toString() {
-        return String.format("SqlExecutionStats{updated=%d, inserted=%d, deleted=%d, total=%d}",
-                updatedRecords, insertedRecords, deletedRecords, getTotalAffectedRecords());
+        return String.format("SqlExecutionStats{updated=%d, inserted=%d, deleted=%d, total=%d, statements=%d, sqlTime=%dms}",
+                getUpdatedRecords(), getInsertedRecords(), getDeletedRecords(), getTotalAffectedRecords(), getStatementCount(),
+                getSqlTimeNanos() / 1_000_000);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,94 @@
+package io.github.codeed.dbupgrader.stats;
+
+import java.util.regex.*;
+
+/**
+ * Normalizes a sql to its shape, so executions which only differ in literals are counted together.
+ * eg: {@code INSERT INTO t (id, name) VALUES (1, 'a'), (2, 'b')} becomes {@code insert into t (id, name) values (?)}
+ * <ul>
+ *     <li>string and number literals become ?</li>
+ *     <li>whitespaces are collapsed and the sql is lower cased, quoted identifiers are kept as is</li>
+ *     <li>lists of ? (IN lists, rows of VALUES) become a single (?)</li>
+ * </ul>
+ */
+public class SqlFingerprint {
+    private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\( ?\\?(?: ?, ?\\?)* ?\\)");
+    private static final Pattern PLACEHOLDER_ROWS = Pattern.compile("\\(\\?\\)(?: ?, ?\\(\\?\\))+");
+
+    public static String of(String sql) {
+        if (sql == null) {
+            return "";
+        }
+        int length = sql.length();
+        StringBuilder shape = new StringBuilder(Math.min(length, 256));
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = shape.length() > 0;
+                i++;
+                continue;
+            }
+            if (pendingSpace) {
+                shape.append(' ');
+                pendingSpace = false;
+            }
+            if (c == '\'') {
+                i = skipString(sql, i);
+                shape.append('?');
+            }
+            else if (c == '`' || c == '"') {
+                int end = sql.indexOf(c, i + 1);
+                end = end < 0 ? length : end + 1;
+                shape.append(sql, i, end);
+                i = end;
+            }
+            else if (Character.isDigit(c)) {
+                // also hex 0x1F and decimals 1.5e3
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                shape.append('?');
+            }
+            else if (Character.isLetter(c) || c == '_' || c == '$') {
+                // identifiers and keywords, a digit inside them is not a literal
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '_' || sql.charAt(i) == '$')) {
+                    shape.append(Character.toLowerCase(sql.charAt(i)));
+                    i++;
+                }
+            }
+            else {
+                shape.append(c);
+                i++;
+            }
+        }
+        String normalized = PLACEHOLDER_LIST.matcher(shape).replaceAll("(?)");
+        return PLACEHOLDER_ROWS.matcher(normalized).replaceAll("(?)");
+    }
+
+    /**
+     * @return the index after the closing quote, '' and \' are escaped quotes
+     */
+    private static int skipString(String sql, int start) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            }
+            else if (c == '\'') {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+                    i += 2;
+                }
+                else {
+                    return i + 1;
+                }
+            }
+            else {
+                i++;
+            }
+        }
+        return sql.length();
+    }
+}
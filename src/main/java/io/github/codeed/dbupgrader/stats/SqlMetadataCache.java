@@ -0,0 +1,79 @@
+package io.github.codeed.dbupgrader.stats;
+
+import net.sf.jsqlparser.statement.*;
+
+import java.util.*;
+
+/**
+ * Parsed statements and primary key columns of tables, cached for one {@link StatisticsTrackingConnection}, so the smart helpers of
+ * {@link io.github.codeed.dbupgrader.utils.SqlHelperUtils} don't parse the same sql or read the same metadata again in a loop.
+ * Both caches are bounded LRU maps. The primary keys of a table are dropped when a DDL on it runs through the connection, and all
+ * of them are dropped for a DDL whose table isn't known, eg: RENAME TABLE.
+ * The cached statements are shared, don't modify them.
+ */
+public class SqlMetadataCache {
+    private static final int MAX_STATEMENTS = 256;
+    private static final int MAX_TABLES = 1_024;
+    /**
+     * a huge sql (eg: thousands of rows of VALUES) is rarely repeated, don't keep it in memory
+     */
+    private static final int MAX_CACHED_SQL_LENGTH = 4_096;
+
+    private final Map<String, Statement> statements = lruMap(MAX_STATEMENTS);
+    /**
+     * key is "schema.table" in lower case
+     */
+    private final Map<String, List<String>> primaryKeys = lruMap(MAX_TABLES);
+
+    public synchronized Statement getStatement(String sql) {
+        return statements.get(sql);
+    }
+
+    public synchronized void putStatement(String sql, Statement statement) {
+        if (sql.length() <= MAX_CACHED_SQL_LENGTH) {
+            statements.put(sql, statement);
+        }
+    }
+
+    /**
+     * @return null if it's not cached
+     */
+    public synchronized List<String> getPrimaryKeys(String schema, String table) {
+        return primaryKeys.get(tableKey(schema, table));
+    }
+
+    public synchronized void putPrimaryKeys(String schema, String table, List<String> columns) {
+        primaryKeys.put(tableKey(schema, table), Collections.unmodifiableList(new ArrayList<>(columns)));
+    }
+
+    /**
+     * Drop the metadata of the table changed by the DDL.
+     */
+    public synchronized void onDdl(String sql) {
+        String table = SqlType.ddlTable(sql);
+        if (table == null) {
+            primaryKeys.clear();
+            return;
+        }
+        // the schema may be omitted by the DDL or by the cached key, compare the table name only
+        String suffix = "." + table;
+        primaryKeys.keySet().removeIf(key -> key.endsWith(suffix));
+    }
+
+    public synchronized void invalidateAll() {
+        primaryKeys.clear();
+    }
+
+    private static String tableKey(String schema, String table) {
+        return (schema == null ? "" : SqlType.unquote(schema)) + "." + SqlType.unquote(table);
+    }
+
+    private static <K, V> Map<K, V> lruMap(int maxSize) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.codeed.dbupgrader.stats;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Statistics of all executions of one sql shape {@link SqlFingerprint}, like a row of pg_stat_statements.
+ */
+public class SqlShapeStats {
+    private final String fingerprint;
+    private final SqlType type;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+
+    public SqlShapeStats(String fingerprint, SqlType type) {
+        this.fingerprint = fingerprint;
+        this.type = type;
+    }
+
+    public void record(long elapsedNanos, long affectedRows) {
+        calls.incrementAndGet();
+        totalNanos.addAndGet(elapsedNanos);
+        maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+        if (affectedRows > 0) {
+            rows.addAndGet(affectedRows);
+        }
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public SqlType getType() {
+        return type;
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+    }
+
+    public long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getRows() {
+        return rows.get();
+    }
+
+    @Override
+    public String toString() {
+        return "{calls=" + getCalls() + ", total=" + getTotalMillis() + "ms, max=" + getMaxMillis() + "ms, rows=" + getRows()
+                + ", sql=" + fingerprint + "}";
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.codeed.dbupgrader.stats;
+
+import lombok.extern.java.*;
+import org.apache.commons.lang3.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Statistics of each sql shape executed in one upgrade run, shared by all connections of the run.
+ * Executions slower than the threshold are logged with the upgrade class which ran them.
+ */
+@Log
+public class SqlStatementRegistry {
+    /**
+     * sql built with changing identifiers (eg: table per month) could create unlimited shapes
+     */
+    private static final int MAX_SHAPES = 5_000;
+    private static final String OTHER_SHAPES = "<other>";
+    private static final int MAX_LOGGED_SQL_LENGTH = 1_000;
+
+    private final long slowSqlThresholdNanos;
+    private final Map<String, SqlShapeStats> shapes = new ConcurrentHashMap<>();
+
+    /**
+     * @param slowSqlThresholdMillis <=0 to disable the slow sql log
+     */
+    public SqlStatementRegistry(long slowSqlThresholdMillis) {
+        this.slowSqlThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowSqlThresholdMillis);
+    }
+
+    public SqlShapeStats shape(String sql) {
+        String fingerprint = SqlFingerprint.of(sql);
+        SqlShapeStats shape = shapes.get(fingerprint);
+        if (shape != null) {
+            return shape;
+        }
+        if (shapes.size() >= MAX_SHAPES) {
+            fingerprint = OTHER_SHAPES;
+        }
+        return shapes.computeIfAbsent(fingerprint, k -> new SqlShapeStats(k, SqlType.of(sql)));
+    }
+
+    /**
+     * @param context the upgrade class running the sql, may be null
+     */
+    public void record(SqlShapeStats shape, String sql, long elapsedNanos, long rows, String context) {
+        shape.record(elapsedNanos, rows);
+        if (slowSqlThresholdNanos > 0 && elapsedNanos >= slowSqlThresholdNanos) {
+            log.warning("Slow sql took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms, rows: " + rows
+                    + (context == null ? "" : ", upgrade class: " + context)
+                    + ", sql: " + StringUtils.abbreviate(sql, MAX_LOGGED_SQL_LENGTH));
+        }
+    }
+
+    /**
+     * @return all shapes, the most expensive first
+     */
+    public List<SqlShapeStats> getShapes() {
+        return shapes.values().stream()
+                .sorted(Comparator.comparingLong(SqlShapeStats::getTotalNanos).reversed())
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,83 @@
+package io.github.codeed.dbupgrader.stats;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Type of a sql statement by its first keyword. It's classified once when a statement is prepared.
+ */
+public enum SqlType {
+    INSERT,
+    UPDATE,
+    DELETE,
+    /**
+     * ALTER, CREATE, DROP, RENAME and TRUNCATE, they change the schema instead of records
+     */
+    DDL,
+    OTHER;
+
+    private static final String NAME = "([`\"\\w.$]+)";
+    private static final Pattern TABLE_DDL = Pattern.compile("^\\s*(?:alter|create|drop|truncate)\\s+(?:temporary\\s+)?table\\s+" +
+            "(?:if\\s+(?:not\\s+)?exists\\s+)?" + NAME + "\\s*(,)?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern INDEX_DDL = Pattern.compile("^\\s*(?:create\\s+(?:unique\\s+|fulltext\\s+|spatial\\s+)?|drop\\s+)index\\s+" +
+            "[`\"\\w$]+\\s+on\\s+" + NAME, Pattern.CASE_INSENSITIVE);
+    private static final Pattern RENAME = Pattern.compile("\\brename\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Classify without allocating, it's called for every sql of a plain {@link java.sql.Statement}.
+     */
+    public static SqlType of(String sql) {
+        if (sql == null) {
+            return OTHER;
+        }
+        int start = 0;
+        while (start < sql.length() && (Character.isWhitespace(sql.charAt(start)) || sql.charAt(start) == '(')) {
+            start++;
+        }
+        if (sql.regionMatches(true, start, "INSERT", 0, 6)) {
+            return INSERT;
+        }
+        else if (sql.regionMatches(true, start, "UPDATE", 0, 6)) {
+            return UPDATE;
+        }
+        else if (sql.regionMatches(true, start, "DELETE", 0, 6)) {
+            return DELETE;
+        }
+        else if (sql.regionMatches(true, start, "ALTER", 0, 5) || sql.regionMatches(true, start, "CREATE", 0, 6)
+                || sql.regionMatches(true, start, "DROP", 0, 4) || sql.regionMatches(true, start, "RENAME", 0, 6)
+                || sql.regionMatches(true, start, "TRUNCATE", 0, 8)) {
+            return DDL;
+        }
+        return OTHER;
+    }
+
+    /**
+     * The only table changed by a DDL, eg: {@code ALTER TABLE `db`.`User` ADD ...} is {@code user}.
+     *
+     * @return the table name without schema and quotes in lower case, null if it's not a DDL or it may change other tables,
+     * eg: RENAME or DROP TABLE a, b
+     */
+    public static String ddlTable(String sql) {
+        if (sql == null || RENAME.matcher(sql).find()) {
+            return null;
+        }
+        Matcher matcher = TABLE_DDL.matcher(sql);
+        if (matcher.find()) {
+            return matcher.group(2) == null ? unquote(matcher.group(1)) : null;
+        }
+        matcher = INDEX_DDL.matcher(sql);
+        return matcher.find() ? unquote(matcher.group(1)) : null;
+    }
+
+    static String unquote(String name) {
+        String unquoted = name.replace("`", "").replace("\"", "").toLowerCase(Locale.ROOT);
+        return unquoted.substring(unquoted.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * @return whether the affected records of the sql are counted
+     */
+    public boolean isDml() {
+        return this == INSERT || this == UPDATE || this == DELETE;
+    }
+}
@@ -1 +1,453 @@
- 
\ No newline at end of file
+package io.github.codeed.dbupgrader.stats;
+
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+/**
+ * Delegates to the wrapped connection, and wraps the statements it creates to collect {@link SqlExecutionStats}, and the
+ * statistics of each sql shape if there is a {@link SqlStatementRegistry}.
+ * The upgrade session configures what the smart helpers of {@link SqlHelperUtils} use on the connection: the schema snapshot, the
+ * DDL coalescer and execution policy, and the rehearsal.
+ */
+public class StatisticsTrackingConnection implements Connection {
+    private final Connection delegate;
+    private final SqlExecutionStats stats = new SqlExecutionStats();
+    private final SqlStatementRegistry registry;
+    private final SqlMetadataCache metadataCache = new SqlMetadataCache();
+    /**
+     * null if the existence checks query the metadata every time
+     */
+    private volatile SchemaSnapshot schemaSnapshot;
+    /**
+     * null if the columns are added right away by the smart helpers
+     */
+    private volatile DdlCoalescer ddlCoalescer;
+    /**
+     * null if the DDL of the smart helpers runs as is
+     */
+    private volatile DdlExecutionPolicy ddlExecutionPolicy;
+    /**
+     * null unless the connection runs a rehearsal
+     */
+    private volatile RehearsalRecorder rehearsal;
+    /**
+     * what is running on the connection, eg: the upgrade class. It's logged with slow sql
+     */
+    private volatile String context;
+    /**
+     * the statement which makes the affected records of {@link #stats} exceed it fails, <=0 means no limit
+     */
+    private volatile long maxAffectedRecords;
+    /**
+     * records were changed on the connection since the last commit or rollback
+     */
+    private volatile boolean uncommittedChanges;
+
+    public StatisticsTrackingConnection(Connection delegate) {
+        this(delegate, null);
+    }
+
+    public StatisticsTrackingConnection(Connection delegate, SqlStatementRegistry registry) {
+        this.delegate = delegate;
+        this.registry = registry;
+    }
+
+    /**
+     * @return the connection if it's a statistics tracking connection, otherwise null
+     */
+    public static StatisticsTrackingConnection of(Connection connection) {
+        return connection instanceof StatisticsTrackingConnection ? (StatisticsTrackingConnection) connection : null;
+    }
+
+    public SqlExecutionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return null if the sql shapes are not tracked
+     */
+    public SqlStatementRegistry getRegistry() {
+        return registry;
+    }
+
+    public SqlMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public SchemaSnapshot getSchemaSnapshot() {
+        return schemaSnapshot;
+    }
+
+    public void setSchemaSnapshot(SchemaSnapshot schemaSnapshot) {
+        this.schemaSnapshot = schemaSnapshot;
+    }
+
+    public DdlCoalescer getDdlCoalescer() {
+        return ddlCoalescer;
+    }
+
+    public void setDdlCoalescer(DdlCoalescer ddlCoalescer) {
+        this.ddlCoalescer = ddlCoalescer;
+    }
+
+    public DdlExecutionPolicy getDdlExecutionPolicy() {
+        return ddlExecutionPolicy;
+    }
+
+    public void setDdlExecutionPolicy(DdlExecutionPolicy ddlExecutionPolicy) {
+        this.ddlExecutionPolicy = ddlExecutionPolicy;
+    }
+
+    public RehearsalRecorder getRehearsal() {
+        return rehearsal;
+    }
+
+    public void setRehearsal(RehearsalRecorder rehearsal) {
+        this.rehearsal = rehearsal;
+    }
+
+    /**
+     * The raw connection, the sql run on it is not tracked
+     */
+    Connection getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Drop the cached metadata changed by a DDL executed on this connection.
+     *
+     * @param ddl null if the changed tables are not known, eg: a batch
+     */
+    void schemaChanged(String ddl) {
+        SchemaSnapshot snapshot = schemaSnapshot;
+        if (ddl == null) {
+            metadataCache.invalidateAll();
+            if (snapshot != null) {
+                snapshot.invalidateAll();
+            }
+        }
+        else {
+            metadataCache.onDdl(ddl);
+            if (snapshot != null) {
+                snapshot.onDdl(ddl);
+            }
+        }
+    }
+
+    /**
+     * @return whether the statements on the connection changed records which are not committed or rolled back yet
+     */
+    public boolean hasUncommittedChanges() {
+        return uncommittedChanges;
+    }
+
+    void recordsChanged() {
+        uncommittedChanges = true;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    public long getMaxAffectedRecords() {
+        return maxAffectedRecords;
+    }
+
+    public void setMaxAffectedRecords(long maxAffectedRecords) {
+        this.maxAffectedRecords = maxAffectedRecords;
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return new StatisticsTrackingStatement<>(delegate.createStatement(), this);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new StatisticsTrackingStatement<>(delegate.createStatement(resultSetType, resultSetConcurrency), this);
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return new StatisticsTrackingStatement<>(delegate.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability), this);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql), this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql, autoGeneratedKeys), this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql, columnIndexes), this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql, columnNames), this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency), this, sql);
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return new StatisticsTrackingPreparedStatement<>(delegate.prepareStatement(sql, resultSetType, resultSetConcurrency,
+                resultSetHoldability), this, sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return new StatisticsTrackingCallableStatement(delegate.prepareCall(sql), this, sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return new StatisticsTrackingCallableStatement(delegate.prepareCall(sql, resultSetType, resultSetConcurrency), this, sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+            throws SQLException {
+        return new StatisticsTrackingCallableStatement(delegate.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
+                this, sql);
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    @Override
+    public void abort(java.util.concurrent.Executor executor) throws SQLException {
+        delegate.abort(executor);
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        RehearsalRecorder rehearsal = this.rehearsal;
+        if (rehearsal != null) {
+            rehearsal.checkCommit(context);
+        }
+        delegate.commit();
+        uncommittedChanges = false;
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return delegate.createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return delegate.createBlob();
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return delegate.createClob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return delegate.createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return delegate.createSQLXML();
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return delegate.createStruct(typeName, attributes);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return delegate.getAutoCommit();
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return delegate.getCatalog();
+    }
+
+    @Override
+    public java.util.Properties getClientInfo() throws SQLException {
+        return delegate.getClientInfo();
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return delegate.getClientInfo(name);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return delegate.getHoldability();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return delegate.getNetworkTimeout();
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return delegate.getSchema();
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return delegate.getTransactionIsolation();
+    }
+
+    @Override
+    public java.util.Map<String, Class<?>> getTypeMap() throws SQLException {
+        return delegate.getTypeMap();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return delegate.isReadOnly();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return delegate.isValid(timeout);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return delegate.nativeSQL(sql);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        delegate.releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        delegate.rollback();
+        uncommittedChanges = false;
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        delegate.rollback(savepoint);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        RehearsalRecorder rehearsal = this.rehearsal;
+        if (rehearsal != null && autoCommit) {
+            rehearsal.checkCommit(context);
+        }
+        // the changes made in auto-commit mode, or pending when it's turned on, are committed
+        boolean commits = autoCommit || delegate.getAutoCommit();
+        delegate.setAutoCommit(autoCommit);
+        if (commits) {
+            uncommittedChanges = false;
+        }
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        delegate.setCatalog(catalog);
+    }
+
+    @Override
+    public void setClientInfo(java.util.Properties properties) throws SQLClientInfoException {
+        delegate.setClientInfo(properties);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        delegate.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        delegate.setHoldability(holdability);
+    }
+
+    @Override
+    public void setNetworkTimeout(java.util.concurrent.Executor executor, int milliseconds) throws SQLException {
+        delegate.setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        delegate.setReadOnly(readOnly);
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return delegate.setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return delegate.setSavepoint(name);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        delegate.setSchema(schema);
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        delegate.setTransactionIsolation(level);
+    }
+
+    @Override
+    public void setTypeMap(java.util.Map<String, Class<?>> map) throws SQLException {
+        delegate.setTypeMap(map);
+    }
+}
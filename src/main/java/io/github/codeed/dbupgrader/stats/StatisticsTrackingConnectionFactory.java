@@ -1,60 +1,40 @@
 package io.github.codeed.dbupgrader.stats;
 
-import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.Statement;
 
 public class StatisticsTrackingConnectionFactory {
-    
+
     public static Connection createConnection(Connection connection) {
-        SqlExecutionStats stats = new SqlExecutionStats();
-        return (Connection) Proxy.newProxyInstance(
-            Connection.class.getClassLoader(),
-            new Class<?>[] { Connection.class },
-            new ConnectionInvocationHandler(connection, stats)
-        );
+        return new StatisticsTrackingConnection(connection);
     }
 
-    private static class ConnectionInvocationHandler implements java.lang.reflect.InvocationHandler {
-        private final Connection target;
-        private final SqlExecutionStats stats;
-
-        public ConnectionInvocationHandler(Connection target, SqlExecutionStats stats) {
-            this.target = target;
-            this.stats = stats;
-        }
+    /**
+     * @param registry collects the statistics of each sql shape, it may be shared by several connections
+     */
+    public static Connection createConnection(Connection connection, SqlStatementRegistry registry) {
+        return new StatisticsTrackingConnection(connection, registry);
+    }
 
-        @Override
-        public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) throws Throwable {
-            Object result = method.invoke(target, args);
-            
-            // Intercept statement creation methods
-            if (result instanceof Statement) {
-                if (method.getName().equals("createStatement")) {
-                    return Proxy.newProxyInstance(
-                        Statement.class.getClassLoader(),
-                        new Class<?>[] { Statement.class },
-                        new SqlStatementInvocationHandler(result, stats, args)
-                    );
-                } else if (method.getName().equals("prepareStatement")) {
-                    return Proxy.newProxyInstance(
-                        PreparedStatement.class.getClassLoader(),
-                        new Class<?>[] { PreparedStatement.class },
-                        new SqlStatementInvocationHandler(result, stats, args)
-                    );
-                }
-            }
-            
-            return result;
+    /**
+     * Wrap the connection to report its sql to the same {@link SqlStatementRegistry} as the template, with the same context.
+     * Its own {@link SqlExecutionStats} are separate, so they don't count for the limit of the template.
+     *
+     * @return the connection itself if the template isn't created by this factory
+     */
+    public static Connection createConnectionLike(Connection connection, Connection template) {
+        if (!(template instanceof StatisticsTrackingConnection)) {
+            return connection;
         }
+        StatisticsTrackingConnection trackingTemplate = (StatisticsTrackingConnection) template;
+        StatisticsTrackingConnection conn = new StatisticsTrackingConnection(connection, trackingTemplate.getRegistry());
+        conn.setContext(trackingTemplate.getContext());
+        return conn;
     }
 
     public static SqlExecutionStats getStats(Connection connection) {
-        if (Proxy.isProxyClass(connection.getClass())) {
-            ConnectionInvocationHandler handler = (ConnectionInvocationHandler) Proxy.getInvocationHandler(connection);
-            return handler.stats;
+        if (connection instanceof StatisticsTrackingConnection) {
+            return ((StatisticsTrackingConnection) connection).getStats();
         }
         return null;
     }
-} 
\ No newline at end of file
+}
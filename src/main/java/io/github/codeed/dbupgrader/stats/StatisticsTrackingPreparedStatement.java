@@ -0,0 +1,398 @@
+package io.github.codeed.dbupgrader.stats;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link SqlType} and the shape of the sql are resolved once here, executions only update the counters.
+ */
+public class StatisticsTrackingPreparedStatement<T extends PreparedStatement> extends StatisticsTrackingStatement<T>
+        implements PreparedStatement {
+    protected final String sql;
+    protected final SqlType sqlType;
+    /**
+     * null if the connection doesn't track sql shapes
+     */
+    private final SqlShapeStats shape;
+    /**
+     * the parameters set, only kept for a rehearsal to explain the sql
+     */
+    private List<Object> parameters;
+
+    public StatisticsTrackingPreparedStatement(T delegate, StatisticsTrackingConnection connection, String sql) {
+        super(delegate, connection);
+        this.sql = sql;
+        SqlStatementRegistry registry = connection.getRegistry();
+        this.shape = registry == null ? null : registry.shape(sql);
+        this.sqlType = shape == null ? SqlType.of(sql) : shape.getType();
+    }
+
+    @Override
+    protected String batchSql() {
+        return sql;
+    }
+
+    @Override
+    protected SqlShapeStats shape(SqlStatementRegistry registry, String sql) {
+        return shape != null && sql == this.sql ? shape : registry.shape(sql);
+    }
+
+    @Override
+    protected List<Object> parameters() {
+        return parameters;
+    }
+
+    private void parameter(int index, Object value) {
+        if (connection.getRehearsal() == null) {
+            return;
+        }
+        if (parameters == null) {
+            parameters = new ArrayList<>();
+        }
+        while (parameters.size() < index) {
+            parameters.add(null);
+        }
+        parameters.set(index - 1, value);
+    }
+
+    @Override
+    protected SqlType batchType(int index) {
+        return sqlType;
+    }
+
+    @Override
+    public ResultSet executeQuery() throws SQLException {
+        long start = started(sql);
+        try {
+            return delegate.executeQuery();
+        }
+        finally {
+            finished(start, sql, sqlType);
+        }
+    }
+
+    @Override
+    public int executeUpdate() throws SQLException {
+        long start = started(sql);
+        try {
+            return trackUpdate(sqlType, delegate.executeUpdate());
+        }
+        finally {
+            finished(start, sql, sqlType);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate() throws SQLException {
+        long start = started(sql);
+        try {
+            return trackUpdate(sqlType, delegate.executeLargeUpdate());
+        }
+        finally {
+            finished(start, sql, sqlType);
+        }
+    }
+
+    @Override
+    public boolean execute() throws SQLException {
+        long start = started(sql);
+        try {
+            return trackExecute(sqlType, delegate.execute());
+        }
+        finally {
+            finished(start, sql, sqlType);
+        }
+    }
+
+    @Override
+    public void addBatch() throws SQLException {
+        delegate.addBatch();
+    }
+
+    @Override
+    public void clearParameters() throws SQLException {
+        delegate.clearParameters();
+        if (parameters != null) {
+            parameters.clear();
+        }
+    }
+
+    @Override
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return delegate.getMetaData();
+    }
+
+    @Override
+    public ParameterMetaData getParameterMetaData() throws SQLException {
+        return delegate.getParameterMetaData();
+    }
+
+    @Override
+    public void setArray(int parameterIndex, Array x) throws SQLException {
+        delegate.setArray(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, java.io.InputStream x) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, java.io.InputStream x, int length) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setAsciiStream(int parameterIndex, java.io.InputStream x, long length) throws SQLException {
+        delegate.setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBigDecimal(int parameterIndex, java.math.BigDecimal x) throws SQLException {
+        delegate.setBigDecimal(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, java.io.InputStream x) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, java.io.InputStream x, int length) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBinaryStream(int parameterIndex, java.io.InputStream x, long length) throws SQLException {
+        delegate.setBinaryStream(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, java.io.InputStream x) throws SQLException {
+        delegate.setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, Blob x) throws SQLException {
+        delegate.setBlob(parameterIndex, x);
+    }
+
+    @Override
+    public void setBlob(int parameterIndex, java.io.InputStream x, long length) throws SQLException {
+        delegate.setBlob(parameterIndex, x, length);
+    }
+
+    @Override
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException {
+        delegate.setBoolean(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setByte(int parameterIndex, byte x) throws SQLException {
+        delegate.setByte(parameterIndex, x);
+    }
+
+    @Override
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException {
+        delegate.setBytes(parameterIndex, x);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, java.io.Reader reader) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, java.io.Reader reader, int length) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setCharacterStream(int parameterIndex, java.io.Reader reader, long length) throws SQLException {
+        delegate.setCharacterStream(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, java.io.Reader reader) throws SQLException {
+        delegate.setClob(parameterIndex, reader);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, Clob x) throws SQLException {
+        delegate.setClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setClob(int parameterIndex, java.io.Reader reader, long length) throws SQLException {
+        delegate.setClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x) throws SQLException {
+        delegate.setDate(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setDate(int parameterIndex, Date x, java.util.Calendar cal) throws SQLException {
+        delegate.setDate(parameterIndex, x, cal);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setDouble(int parameterIndex, double x) throws SQLException {
+        delegate.setDouble(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setFloat(int parameterIndex, float x) throws SQLException {
+        delegate.setFloat(parameterIndex, x);
+    }
+
+    @Override
+    public void setInt(int parameterIndex, int x) throws SQLException {
+        delegate.setInt(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setLong(int parameterIndex, long x) throws SQLException {
+        delegate.setLong(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, java.io.Reader reader) throws SQLException {
+        delegate.setNCharacterStream(parameterIndex, reader);
+    }
+
+    @Override
+    public void setNCharacterStream(int parameterIndex, java.io.Reader reader, long length) throws SQLException {
+        delegate.setNCharacterStream(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, java.io.Reader reader) throws SQLException {
+        delegate.setNClob(parameterIndex, reader);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, NClob x) throws SQLException {
+        delegate.setNClob(parameterIndex, x);
+    }
+
+    @Override
+    public void setNClob(int parameterIndex, java.io.Reader reader, long length) throws SQLException {
+        delegate.setNClob(parameterIndex, reader, length);
+    }
+
+    @Override
+    public void setNString(int parameterIndex, String x) throws SQLException {
+        delegate.setNString(parameterIndex, x);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType) throws SQLException {
+        delegate.setNull(parameterIndex, sqlType);
+        parameter(parameterIndex, null);
+    }
+
+    @Override
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
+        delegate.setNull(parameterIndex, sqlType, typeName);
+        parameter(parameterIndex, null);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x) throws SQLException {
+        delegate.setObject(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int sqlType) throws SQLException {
+        delegate.setObject(parameterIndex, x, sqlType);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType sqlType) throws SQLException {
+        delegate.setObject(parameterIndex, x, sqlType);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, int sqlType, int scale) throws SQLException {
+        delegate.setObject(parameterIndex, x, sqlType, scale);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setObject(int parameterIndex, Object x, SQLType sqlType, int scale) throws SQLException {
+        delegate.setObject(parameterIndex, x, sqlType, scale);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setRef(int parameterIndex, Ref x) throws SQLException {
+        delegate.setRef(parameterIndex, x);
+    }
+
+    @Override
+    public void setRowId(int parameterIndex, RowId x) throws SQLException {
+        delegate.setRowId(parameterIndex, x);
+    }
+
+    @Override
+    public void setSQLXML(int parameterIndex, SQLXML x) throws SQLException {
+        delegate.setSQLXML(parameterIndex, x);
+    }
+
+    @Override
+    public void setShort(int parameterIndex, short x) throws SQLException {
+        delegate.setShort(parameterIndex, x);
+    }
+
+    @Override
+    public void setString(int parameterIndex, String x) throws SQLException {
+        delegate.setString(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x) throws SQLException {
+        delegate.setTime(parameterIndex, x);
+    }
+
+    @Override
+    public void setTime(int parameterIndex, Time x, java.util.Calendar cal) throws SQLException {
+        delegate.setTime(parameterIndex, x, cal);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
+        delegate.setTimestamp(parameterIndex, x);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setTimestamp(int parameterIndex, Timestamp x, java.util.Calendar cal) throws SQLException {
+        delegate.setTimestamp(parameterIndex, x, cal);
+        parameter(parameterIndex, x);
+    }
+
+    @Override
+    public void setURL(int parameterIndex, java.net.URL x) throws SQLException {
+        delegate.setURL(parameterIndex, x);
+    }
+
+    @Override
+    @Deprecated
+    public void setUnicodeStream(int parameterIndex, java.io.InputStream x, int length) throws SQLException {
+        delegate.setUnicodeStream(parameterIndex, x, length);
+    }
+}
@@ -1 +1,552 @@
- 
\ No newline at end of file
+package io.github.codeed.dbupgrader.stats;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delegates to the wrapped statement and collects {@link SqlExecutionStats} of the execute methods:
+ * time and count of all executions, and the affected records by {@link SqlType}, including batches and large updates.
+ * The execution which makes the affected records exceed {@link StatisticsTrackingConnection#getMaxAffectedRecords()} fails.
+ */
+public class StatisticsTrackingStatement<T extends Statement> implements Statement {
+    protected final T delegate;
+    protected final StatisticsTrackingConnection connection;
+    protected final SqlExecutionStats stats;
+    /**
+     * type of each sql added by {@link #addBatch(String)}
+     */
+    private List<SqlType> batchTypes;
+    /**
+     * the first sql of the batch, the batch is counted as its shape
+     */
+    private String batchSql;
+    private boolean batchHasDdl;
+    /**
+     * records affected by the running execution
+     */
+    private long executionRows;
+
+    public StatisticsTrackingStatement(T delegate, StatisticsTrackingConnection connection) {
+        this.delegate = delegate;
+        this.connection = connection;
+        this.stats = connection.getStats();
+    }
+
+    protected SqlType batchType(int index) {
+        return batchTypes != null && index < batchTypes.size() ? batchTypes.get(index) : SqlType.OTHER;
+    }
+
+    protected void clearBatchTypes() {
+        if (batchTypes != null) {
+            batchTypes.clear();
+        }
+        batchSql = null;
+        batchHasDdl = false;
+    }
+
+    protected boolean trackExecute(SqlType type, boolean hasResultSet) throws SQLException {
+        if (!hasResultSet && type.isDml()) {
+            int count = delegate.getUpdateCount();
+            if (count > 0) {
+                addRecords(type, count);
+                checkMaxAffectedRecords();
+            }
+        }
+        return hasResultSet;
+    }
+
+    protected int trackUpdate(SqlType type, int count) throws SQLException {
+        addRecords(type, count);
+        checkMaxAffectedRecords();
+        return count;
+    }
+
+    protected long trackUpdate(SqlType type, long count) throws SQLException {
+        addRecords(type, count);
+        checkMaxAffectedRecords();
+        return count;
+    }
+
+    protected int[] trackBatch(int[] counts) throws SQLException {
+        for (int i = 0; i < counts.length; i++) {
+            // Statement.SUCCESS_NO_INFO and EXECUTE_FAILED are negative
+            if (counts[i] > 0) {
+                addRecords(batchType(i), counts[i]);
+            }
+        }
+        checkMaxAffectedRecords();
+        return counts;
+    }
+
+    protected long[] trackBatch(long[] counts) throws SQLException {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                addRecords(batchType(i), counts[i]);
+            }
+        }
+        checkMaxAffectedRecords();
+        return counts;
+    }
+
+    private void addRecords(SqlType type, long count) {
+        stats.addRecords(type, count);
+        executionRows += count;
+        connection.recordsChanged();
+    }
+
+    /**
+     * Fail the statement which took the upgrade over the limit, instead of running the rest of the upgrade class first.
+     * The row counts are only known once the statement returns, so its changes are already made, it's the rollback of
+     * the upgrade transaction that undoes them.
+     */
+    private void checkMaxAffectedRecords() throws SQLException {
+        long max = connection.getMaxAffectedRecords();
+        long affected = stats.getTotalAffectedRecords();
+        if (max <= 0 || affected <= max) {
+            return;
+        }
+        throw new SQLException(String.format("Upgrade %s affected %d records, which exceeds the maximum limit of %d. Please increase the" +
+                " maxAffectRecords or set it to -1 (no limit) in the @DbUpgrade.", connection.getContext(), affected, max));
+    }
+
+    /**
+     * @return the sql the batch is counted as
+     */
+    protected String batchSql() {
+        return batchSql;
+    }
+
+    /**
+     * @return the shape of the sql, prepared statements resolve it once
+     */
+    protected SqlShapeStats shape(SqlStatementRegistry registry, String sql) {
+        return registry.shape(sql);
+    }
+
+    /**
+     * @return the start time of the execution
+     */
+    protected long started(String sql) throws SQLException {
+        checkRehearsal(sql);
+        return System.nanoTime();
+    }
+
+    /**
+     * Refuse the sql which would commit a rehearsal, before it runs.
+     */
+    protected void checkRehearsal(String sql) throws SQLException {
+        RehearsalRecorder rehearsal = connection.getRehearsal();
+        if (rehearsal != null && sql != null) {
+            rehearsal.check(sql, connection.getContext());
+        }
+    }
+
+    /**
+     * @return the parameters of the last execution to explain it, null for a plain statement
+     */
+    protected List<Object> parameters() {
+        return null;
+    }
+
+    /**
+     * @param type the type of the sql, classified once by the caller. The cached metadata of the connection is dropped after a DDL
+     */
+    protected void finished(long start, String sql, SqlType type) {
+        if (batchHasDdl && sql == batchSql) {
+            // the batch may change several tables
+            connection.schemaChanged(null);
+        }
+        else if (sql != null && type == SqlType.DDL) {
+            connection.schemaChanged(sql);
+        }
+        long elapsed = System.nanoTime() - start;
+        stats.addStatement(elapsed);
+        long rows = executionRows;
+        executionRows = 0;
+        SqlStatementRegistry registry = connection.getRegistry();
+        if (registry != null && sql != null) {
+            registry.record(shape(registry, sql), sql, elapsed, rows, connection.getContext());
+        }
+        RehearsalRecorder rehearsal = connection.getRehearsal();
+        if (rehearsal != null && sql != null) {
+            rehearsal.record(connection.getDelegate(), sql, parameters(), elapsed, rows, connection.getContext());
+        }
+    }
+
+    @Override
+    public ResultSet executeQuery(String sql) throws SQLException {
+        long start = started(sql);
+        try {
+            return delegate.executeQuery(sql);
+        }
+        finally {
+            // a query doesn't change the schema
+            finished(start, sql, SqlType.OTHER);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeUpdate(sql));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeUpdate(sql, autoGeneratedKeys));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeUpdate(sql, columnIndexes));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeUpdate(sql, columnNames));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeLargeUpdate(sql));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeLargeUpdate(sql, autoGeneratedKeys));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeLargeUpdate(sql, columnIndexes));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackUpdate(type, delegate.executeLargeUpdate(sql, columnNames));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackExecute(type, delegate.execute(sql));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackExecute(type, delegate.execute(sql, autoGeneratedKeys));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackExecute(type, delegate.execute(sql, columnIndexes));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        SqlType type = SqlType.of(sql);
+        long start = started(sql);
+        try {
+            return trackExecute(type, delegate.execute(sql, columnNames));
+        }
+        finally {
+            finished(start, sql, type);
+        }
+    }
+
+    @Override
+    public void addBatch(String sql) throws SQLException {
+        checkRehearsal(sql);
+        delegate.addBatch(sql);
+        if (batchTypes == null) {
+            batchTypes = new ArrayList<>();
+        }
+        SqlType type = SqlType.of(sql);
+        batchTypes.add(type);
+        batchHasDdl |= type == SqlType.DDL;
+        if (batchSql == null) {
+            batchSql = sql;
+        }
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        delegate.clearBatch();
+        clearBatchTypes();
+    }
+
+    @Override
+    public int[] executeBatch() throws SQLException {
+        long start = started(batchSql());
+        try {
+            return trackBatch(delegate.executeBatch());
+        }
+        finally {
+            finished(start, batchSql(), batchType(0));
+            clearBatchTypes();
+        }
+    }
+
+    @Override
+    public long[] executeLargeBatch() throws SQLException {
+        long start = started(batchSql());
+        try {
+            return trackBatch(delegate.executeLargeBatch());
+        }
+        finally {
+            finished(start, batchSql(), batchType(0));
+            clearBatchTypes();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connection;
+    }
+
+    @Override
+    public <I> I unwrap(Class<I> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+
+    @Override
+    public void cancel() throws SQLException {
+        delegate.cancel();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        delegate.clearWarnings();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public void closeOnCompletion() throws SQLException {
+        delegate.closeOnCompletion();
+    }
+
+    @Override
+    public int getFetchDirection() throws SQLException {
+        return delegate.getFetchDirection();
+    }
+
+    @Override
+    public int getFetchSize() throws SQLException {
+        return delegate.getFetchSize();
+    }
+
+    @Override
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return delegate.getGeneratedKeys();
+    }
+
+    @Override
+    public long getLargeMaxRows() throws SQLException {
+        return delegate.getLargeMaxRows();
+    }
+
+    @Override
+    public long getLargeUpdateCount() throws SQLException {
+        return delegate.getLargeUpdateCount();
+    }
+
+    @Override
+    public int getMaxFieldSize() throws SQLException {
+        return delegate.getMaxFieldSize();
+    }
+
+    @Override
+    public int getMaxRows() throws SQLException {
+        return delegate.getMaxRows();
+    }
+
+    @Override
+    public boolean getMoreResults() throws SQLException {
+        return delegate.getMoreResults();
+    }
+
+    @Override
+    public boolean getMoreResults(int current) throws SQLException {
+        return delegate.getMoreResults(current);
+    }
+
+    @Override
+    public int getQueryTimeout() throws SQLException {
+        return delegate.getQueryTimeout();
+    }
+
+    @Override
+    public ResultSet getResultSet() throws SQLException {
+        return delegate.getResultSet();
+    }
+
+    @Override
+    public int getResultSetConcurrency() throws SQLException {
+        return delegate.getResultSetConcurrency();
+    }
+
+    @Override
+    public int getResultSetHoldability() throws SQLException {
+        return delegate.getResultSetHoldability();
+    }
+
+    @Override
+    public int getResultSetType() throws SQLException {
+        return delegate.getResultSetType();
+    }
+
+    @Override
+    public int getUpdateCount() throws SQLException {
+        return delegate.getUpdateCount();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return delegate.getWarnings();
+    }
+
+    @Override
+    public boolean isCloseOnCompletion() throws SQLException {
+        return delegate.isCloseOnCompletion();
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public boolean isPoolable() throws SQLException {
+        return delegate.isPoolable();
+    }
+
+    @Override
+    public void setCursorName(String name) throws SQLException {
+        delegate.setCursorName(name);
+    }
+
+    @Override
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        delegate.setEscapeProcessing(enable);
+    }
+
+    @Override
+    public void setFetchDirection(int direction) throws SQLException {
+        delegate.setFetchDirection(direction);
+    }
+
+    @Override
+    public void setFetchSize(int rows) throws SQLException {
+        delegate.setFetchSize(rows);
+    }
+
+    @Override
+    public void setLargeMaxRows(long max) throws SQLException {
+        delegate.setLargeMaxRows(max);
+    }
+
+    @Override
+    public void setMaxFieldSize(int max) throws SQLException {
+        delegate.setMaxFieldSize(max);
+    }
+
+    @Override
+    public void setMaxRows(int max) throws SQLException {
+        delegate.setMaxRows(max);
+    }
+
+    @Override
+    public void setPoolable(boolean poolable) throws SQLException {
+        delegate.setPoolable(poolable);
+    }
+
+    @Override
+    public void setQueryTimeout(int seconds) throws SQLException {
+        delegate.setQueryTimeout(seconds);
+    }
+}
@@ -0,0 +1,133 @@
+package io.github.codeed.dbupgrader.utils;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Writes many rows with one {@link PreparedStatement}, sending them to the database every {@code batchSize} rows by JDBC batching.
+ * The rows left in the batch are sent by {@link #flush()} or {@link #close()}, unless adding or sending rows failed before.
+ * Create it by {@link SqlHelperUtils#batchWriter(Connection, String, int)} or {@link SqlHelperUtils#batchWriterWithGeneratedKeys(Connection, String, int)}.
+ * <p>
+ * For mysql, add {@code rewriteBatchedStatements=true} to the jdbc url, so the driver sends a batch as multi-row statements.
+ * <pre>{@code
+ * try (BatchWriter writer = SqlHelperUtils.batchWriter(conn, "insert into country (code, name) values (?, ?)", 1000)) {
+ *     for (Country country : countries) {
+ *         writer.add(country.getCode(), country.getName());
+ *     }
+ * }
+ * }</pre>
+ */
+public class BatchWriter implements AutoCloseable {
+    private final PreparedStatement ps;
+    private final int batchSize;
+    private final boolean returnGeneratedKeys;
+    private final List<Long> generatedKeys;
+    private int pendingRows;
+    private long affectedRows;
+    private boolean closed;
+    /**
+     * adding or sending rows failed, the rows left are not sent by {@link #close()}
+     */
+    private boolean failed;
+
+    BatchWriter(Connection conn, String sql, int batchSize, boolean returnGeneratedKeys) throws SQLException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.ps = returnGeneratedKeys ? conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : conn.prepareStatement(sql);
+        this.batchSize = batchSize;
+        this.returnGeneratedKeys = returnGeneratedKeys;
+        this.generatedKeys = returnGeneratedKeys ? new ArrayList<>() : Collections.emptyList();
+    }
+
+    /**
+     * Add a row to the batch, the batch is sent when it has {@code batchSize} rows.
+     */
+    public void add(Object... args) throws SQLException {
+        if (closed) {
+            throw new SQLException("The batch writer is closed");
+        }
+        try {
+            for (int i = 0; i < args.length; i++) {
+                ps.setObject(i + 1, args[i]);
+            }
+            ps.addBatch();
+        }
+        catch (SQLException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        if (++pendingRows >= batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the rows in the batch to the database.
+     */
+    public void flush() throws SQLException {
+        if (pendingRows == 0) {
+            return;
+        }
+        pendingRows = 0;
+        int[] counts;
+        try {
+            counts = ps.executeBatch();
+        }
+        catch (SQLException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+        finally {
+            // whether a failed batch is cleared is up to the driver, its rows must not be sent again with the next rows
+            ps.clearBatch();
+        }
+        for (int count : counts) {
+            // Statement.SUCCESS_NO_INFO is negative, the driver doesn't know the count of the row
+            if (count > 0) {
+                affectedRows += count;
+            }
+        }
+        if (returnGeneratedKeys) {
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                while (rs.next()) {
+                    generatedKeys.add(rs.getLong(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return affected rows of the sent batches, the rows whose count is not reported by the driver are not included
+     */
+    public long getAffectedRows() {
+        return affectedRows;
+    }
+
+    /**
+     * @return the generated keys of the sent batches in order, empty if the writer doesn't return generated keys
+     */
+    public List<Long> getGeneratedKeys() {
+        return Collections.unmodifiableList(generatedKeys);
+    }
+
+    /**
+     * Send the rows left in the batch, and close the statement. After a failure of {@link #add} or {@link #flush()} the rows left
+     * are discarded, the caller is handling that failure.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!failed) {
+                flush();
+            }
+        }
+        finally {
+            ps.close();
+        }
+    }
+}
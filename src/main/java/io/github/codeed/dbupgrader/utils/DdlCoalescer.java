@@ -0,0 +1,97 @@
+package io.github.codeed.dbupgrader.utils;
+
+import lombok.extern.java.*;
+import net.sf.jsqlparser.statement.alter.*;
+import org.apache.commons.lang3.*;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Collects the columns added by {@link SqlHelperUtils#smartAddColumn(Connection, String)} during a version, and adds them by one
+ * ALTER per table when it's flushed, so a big table is rebuilt once instead of once per column.
+ * The existing columns of each table are read by one metadata query when it's flushed, the existing ones are skipped.
+ * It's shared by the connections of one upgrade run, parallel upgrades of the version may add columns at the same time.
+ */
+@Log
+public class DdlCoalescer {
+    /**
+     * key is the table name including its schema, unquoted and in lower case
+     */
+    private final Map<String, List<Alter>> pending = new LinkedHashMap<>();
+
+    synchronized void addColumn(Alter alter) {
+        pending.computeIfAbsent(tableKey(alter), table -> new ArrayList<>()).add(alter);
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Run one ALTER for each table with the queued columns which don't exist yet.
+     */
+    public synchronized void flush(Connection conn) throws SQLException {
+        try {
+            for (List<Alter> alters : pending.values()) {
+                flushTable(conn, alters);
+            }
+        }
+        finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Drop the queued columns, eg: the version is rolled back.
+     */
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    private void flushTable(Connection conn, List<Alter> alters) throws SQLException {
+        Alter first = alters.get(0);
+        Set<String> columns = existingColumns(conn, first);
+        List<AlterExpression> expressions = new ArrayList<>();
+        for (Alter alter : alters) {
+            AlterExpression expression = alter.getAlterExpressions().get(0);
+            // a column added twice in the version is added once
+            if (columns.add(columnKey(expression.getColDataTypeList().get(0).getColumnName()))) {
+                expressions.add(expression);
+            }
+            else {
+                log.info("Column already exists, skipping add column: " + alter);
+            }
+        }
+        if (expressions.isEmpty()) {
+            return;
+        }
+        // a new statement, the parsed ones may be cached and shared
+        Alter combined = new Alter();
+        combined.setTable(first.getTable());
+        combined.setAlterExpressions(expressions);
+        log.info("Add " + expressions.size() + " columns by one alter: " + combined);
+        SqlHelperUtils.executeUpdate(conn, combined.toString());
+    }
+
+    private Set<String> existingColumns(Connection conn, Alter alter) throws SQLException {
+        Set<String> columns = new HashSet<>();
+        String schema = alter.getTable().getSchemaName() == null ? conn.getCatalog() : StringUtils.strip(alter.getTable().getSchemaName(),
+                "`\"");
+        try (ResultSet rs = conn.getMetaData().getColumns(schema, null, StringUtils.strip(alter.getTable().getName(), "`\""), "%")) {
+            while (rs.next()) {
+                columns.add(columnKey(rs.getString("COLUMN_NAME")));
+            }
+        }
+        return columns;
+    }
+
+    private static String tableKey(Alter alter) {
+        String schema = alter.getTable().getSchemaName();
+        return (schema == null ? "" : columnKey(schema) + ".") + columnKey(alter.getTable().getName());
+    }
+
+    private static String columnKey(String column) {
+        return StringUtils.strip(column, "`\"").toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,128 @@
+package io.github.codeed.dbupgrader.utils;
+
+import com.google.common.base.*;
+import lombok.extern.java.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * How the DDL of {@link SqlHelperUtils} runs on mysql, so it doesn't stall the production traffic while waiting for a metadata lock.
+ * <p>
+ * A DDL waiting for the metadata lock of a table (eg: behind a long query or an open transaction) blocks every new query on the
+ * table. The policy sets a short session {@code lock_wait_timeout} for the DDL, so it gives up quickly and lets the queued queries
+ * go, then retries with exponential backoff and full jitter until the retry budget is used up. Optionally the sessions which may
+ * block it are logged on each timeout. The previous {@code lock_wait_timeout} of the session is restored after the DDL.
+ * Other databases run the DDL as is.
+ */
+@Log
+public class DdlExecutionPolicy {
+    /**
+     * ER_LOCK_WAIT_TIMEOUT, including metadata lock timeouts
+     */
+    private static final int LOCK_WAIT_TIMEOUT = 1205;
+    private static final int MAX_BLOCKERS = 10;
+    private static final long INITIAL_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final int lockWaitTimeoutSeconds;
+    private final long retryBudgetMillis;
+    private final boolean reportBlockers;
+
+    /**
+     * @param lockWaitTimeoutSeconds the session lock_wait_timeout of each attempt
+     * @param retryBudgetMillis      total time of the retries, the last timeout is thrown after it
+     * @param reportBlockers         log the sessions which may block the DDL on each timeout
+     */
+    public DdlExecutionPolicy(int lockWaitTimeoutSeconds, long retryBudgetMillis, boolean reportBlockers) {
+        Preconditions.checkArgument(lockWaitTimeoutSeconds > 0, "lockWaitTimeoutSeconds must be > 0");
+        Preconditions.checkArgument(retryBudgetMillis >= 0, "retryBudgetMillis must be >= 0");
+        this.lockWaitTimeoutSeconds = lockWaitTimeoutSeconds;
+        this.retryBudgetMillis = retryBudgetMillis;
+        this.reportBlockers = reportBlockers;
+    }
+
+    /**
+     * Run the DDL under the policy.
+     */
+    public void execute(Connection conn, String sql) throws SQLException {
+        if (!isMysql(conn)) {
+            execute0(conn, sql);
+            return;
+        }
+        Long previousTimeout = SqlHelperUtils.query(conn, "select @@session.lock_wait_timeout", rs -> rs.getLong(1));
+        execute0(conn, "SET SESSION lock_wait_timeout = " + lockWaitTimeoutSeconds);
+        try {
+            executeWithRetry(conn, sql);
+        }
+        finally {
+            if (previousTimeout != null) {
+                execute0(conn, "SET SESSION lock_wait_timeout = " + previousTimeout);
+            }
+        }
+    }
+
+    private void executeWithRetry(Connection conn, String sql) throws SQLException {
+        long deadline = System.currentTimeMillis() + retryBudgetMillis;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                execute0(conn, sql);
+                return;
+            }
+            catch (SQLException e) {
+                if (e.getErrorCode() != LOCK_WAIT_TIMEOUT) {
+                    throw e;
+                }
+                // full jitter, so the retries of several nodes don't line up
+                long sleep = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+                if (System.currentTimeMillis() + sleep > deadline) {
+                    log.severe("DDL timed out waiting for the table lock " + attempt + " times, giving up: " + sql);
+                    throw e;
+                }
+                log.warning("DDL timed out waiting for the table lock (attempt " + attempt + "), retry in " + sleep + "ms: " + sql);
+                if (reportBlockers) {
+                    logBlockers(conn);
+                }
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting to retry the DDL: " + sql, ie);
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * The running queries and the sessions with an open transaction, the longest first. One of them usually holds the metadata lock.
+     */
+    private void logBlockers(Connection conn) {
+        try {
+            List<String> sessions = SqlHelperUtils.queryForList(conn, "select p.id, p.user, p.host, p.command, p.time, p.state, " +
+                    "left(p.info, 200), t.trx_started from information_schema.processlist p left join information_schema.innodb_trx t " +
+                    "on t.trx_mysql_thread_id = p.id where p.id <> connection_id() and (p.command <> 'Sleep' or t.trx_id is not null) " +
+                    "order by p.time desc limit " + MAX_BLOCKERS, rs -> "id=" + rs.getLong(1) + ", user=" + rs.getString(2) + ", host="
+                    + rs.getString(3) + ", command=" + rs.getString(4) + ", time=" + rs.getLong(5) + "s, state=" + rs.getString(6)
+                    + ", trx_started=" + rs.getString(8) + ", sql=" + rs.getString(7));
+            log.warning("Sessions which may block the DDL:\n" + String.join("\n", sessions));
+        }
+        catch (SQLException e) {
+            log.fine("Failed to read the blocking sessions: " + e.getMessage());
+        }
+    }
+
+    private static void execute0(Connection conn, String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static boolean isMysql(Connection conn) throws SQLException {
+        String product = conn.getMetaData().getDatabaseProductName();
+        return product != null && (product.contains("MySQL") || product.contains("MariaDB"));
+    }
+}
@@ -1,12 +1,20 @@
 package io.github.codeed.dbupgrader.utils;
 
+import org.apache.commons.io.function.*;
+
 import java.io.*;
 import java.net.*;
 import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.jar.*;
 
 public class ReflectionUtils {
+    /**
+     * class files per fork join task when visiting in parallel
+     */
+    private static final int PARALLEL_BATCH_SIZE = 64;
+
     /**
      * The spring way ...
      *
@@ -16,49 +24,137 @@ public class ReflectionUtils {
      */
     public static List<Class> getClasses(String packageName) throws IOException, ClassNotFoundException {
         List<Class> classes = new ArrayList<>();
-        String path = packageName.replace('.', '/');
+        visitClassFiles(packageName, (className, classFile) -> classes.add(Class.forName(className)));
+        return classes;
+    }
 
-        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-        Enumeration<URL> resources = classLoader.getResources(path);
+    /**
+     * Visit the class files under the package (and its sub packages) without loading them.
+     *
+     * @param packageName
+     * @param visitor
+     * @throws IOException
+     */
+    public static void visitClassFiles(String packageName, ClassFileVisitor visitor) throws IOException, ClassNotFoundException {
+        for (URL resource : getPackageResources(Thread.currentThread().getContextClassLoader(), packageName)) {
+            visitClassFiles(resource, packageName, visitor, null);
+        }
+    }
 
-        while (resources.hasMoreElements()) {
-            URL resource = resources.nextElement();
-            String protocol = resource.getProtocol();
+    /**
+     * The class directories or jar files which contain the package.
+     *
+     * @param classLoader
+     * @param packageName
+     * @return
+     * @throws IOException
+     */
+    public static List<URL> getPackageResources(ClassLoader classLoader, String packageName) throws IOException {
+        return Collections.list(classLoader.getResources(packageName.replace('.', '/')));
+    }
 
-            if ("file".equals(protocol)) {
-                findClassesInDir(new File(resource.getFile()), packageName, classes);
-            } else if ("jar".equals(protocol)) {
-                findClassesInJar(resource, path, packageName, classes);
+    /**
+     * Visit the class files of the package under one resource of {@link #getPackageResources(ClassLoader, String)}.
+     * If the pool is not null, the class files are visited by the pool in parallel, so the visitor must be thread safe.
+     *
+     * @param resource
+     * @param packageName
+     * @param visitor
+     * @param pool
+     * @throws IOException
+     */
+    public static void visitClassFiles(URL resource, String packageName, ClassFileVisitor visitor, ForkJoinPool pool) throws IOException,
+            ClassNotFoundException {
+        String protocol = resource.getProtocol();
+        List<ClassFile> classFiles = new ArrayList<>();
+
+        if ("file".equals(protocol)) {
+            findClassesInDir(new File(resource.getFile()), packageName, classFiles);
+            visitAll(classFiles, visitor, pool);
+        } else if ("jar".equals(protocol)) {
+            try (JarFile jar = new JarFile(getJarFile(resource))) {
+                findClassesInJar(jar, packageName.replace('.', '/'), classFiles);
+                visitAll(classFiles, visitor, pool);
             }
         }
+    }
 
-        return classes;
+    @FunctionalInterface
+    public interface ClassFileVisitor {
+        /**
+         * @param className full class name
+         * @param classFile opens the class file, it's only valid during this call
+         */
+        void visit(String className, IOSupplier<InputStream> classFile) throws IOException, ClassNotFoundException;
     }
 
-    private static void findClassesInDir(File directory, String packageName, List<Class> classes) throws ClassNotFoundException {
+    private static class ClassFile {
+        private final String className;
+        private final IOSupplier<InputStream> opener;
+
+        private ClassFile(String className, IOSupplier<InputStream> opener) {
+            this.className = className;
+            this.opener = opener;
+        }
+    }
+
+    private static void visitAll(List<ClassFile> classFiles, ClassFileVisitor visitor, ForkJoinPool pool) throws IOException,
+            ClassNotFoundException {
+        if (pool == null || classFiles.size() <= PARALLEL_BATCH_SIZE) {
+            for (ClassFile classFile : classFiles) {
+                visitor.visit(classFile.className, classFile.opener);
+            }
+            return;
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int from = 0; from < classFiles.size(); from += PARALLEL_BATCH_SIZE) {
+            List<ClassFile> batch = classFiles.subList(from, Math.min(from + PARALLEL_BATCH_SIZE, classFiles.size()));
+            tasks.add(() -> {
+                for (ClassFile classFile : batch) {
+                    visitor.visit(classFile.className, classFile.opener);
+                }
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while visiting class files");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof ClassNotFoundException) {
+                    throw (ClassNotFoundException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private static void findClassesInDir(File directory, String packageName, List<ClassFile> classFiles) {
         File[] files = directory.listFiles();
         if (files != null) {
             for (File file : files) {
                 String fileName = file.getName();
                 if (file.isDirectory()) {
-                    findClassesInDir(file, packageName + "." + fileName, classes);
+                    findClassesInDir(file, packageName + "." + fileName, classFiles);
                 } else if (fileName.endsWith(".class")) {
                     String className = packageName + "." + fileName.substring(0, fileName.length() - 6);
-                    classes.add(Class.forName(className));
+                    classFiles.add(new ClassFile(className, () -> new FileInputStream(file)));
                 }
             }
         }
     }
 
-    private static void findClassesInJar(URL resource, String path, String packageName, List<Class> classes) throws IOException,
-            ClassNotFoundException {
-        // two cases: (note: "jar" is in the protocol. path is like: file://xxxx or nested://xxx)
-        // 1. jar:file:/path/to/jar!/
-        // 2. jar:nested:/path/to/jar!/BOOT-INF/classes!/
-        int realPathStartIndex = resource.getPath().indexOf(":");
-        String jarPath = resource.getPath().substring(realPathStartIndex + 1, resource.getPath().indexOf("!"));
-        JarFile jar = new JarFile(URLDecoder.decode(jarPath, StandardCharsets.UTF_8.name()));
-
+    private static void findClassesInJar(JarFile jar, String path, List<ClassFile> classFiles) {
         Enumeration<JarEntry> entries = jar.entries();
         while (entries.hasMoreElements()) {
             JarEntry entry = entries.nextElement();
@@ -70,10 +166,85 @@ public class ReflectionUtils {
             if (name.startsWith(path) && name.endsWith(".class")) {
                 // 转换为类名
                 String className = name.replace('/', '.').substring(0, name.length() - 6);
-                classes.add(Class.forName(className));
+                classFiles.add(new ClassFile(className, () -> jar.getInputStream(entry)));
+            }
+        }
+    }
+
+    /**
+     * A cheap fingerprint of the classes under the package, no class is loaded and no file is read. It's made of the names relative
+     * to the class path root, the sizes and the CRCs of the jar entries under the package, so it's the same on every host and after a
+     * redeploy of the same build, and it changes when any class under the package is added, removed or changed.
+     * A class directory uses the modification times of its files instead of CRCs, so it changes after a rebuild.
+     *
+     * @param packageName
+     * @return
+     * @throws IOException
+     */
+    public static String getPackageFingerprint(String packageName) throws IOException {
+        StringBuilder fingerprint = new StringBuilder(packageName);
+        for (URL resource : getPackageResources(Thread.currentThread().getContextClassLoader(), packageName)) {
+            fingerprint.append('|').append(getResourceFingerprint(resource, packageName));
+        }
+        return fingerprint.toString();
+    }
+
+    /**
+     * The fingerprint of the package under one resource of {@link #getPackageResources(ClassLoader, String)}: the relative name,
+     * size and CRC of each jar entry, the CRC is in the central directory, so the jar is not decompressed. The files of a directory
+     * have their modification time instead, so they are not read either.
+     *
+     * @param resource
+     * @param packageName
+     * @return
+     * @throws IOException
+     */
+    public static String getResourceFingerprint(URL resource, String packageName) throws IOException {
+        String path = packageName.replace('.', '/');
+        List<String> files = new ArrayList<>();
+        String protocol = resource.getProtocol();
+        if ("file".equals(protocol)) {
+            collectFileFingerprints(new File(resource.getFile()), path + "/", files);
+        } else if ("jar".equals(protocol)) {
+            try (JarFile jar = new JarFile(getJarFile(resource))) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (name.startsWith("BOOT-INF/classes")) {
+                        name = name.substring("BOOT-INF/classes".length() + 1);
+                    }
+                    if (name.startsWith(path + "/") && !entry.isDirectory()) {
+                        files.add(name + ":" + entry.getSize() + ":" + entry.getCrc());
+                    }
+                }
             }
+        } else {
+            return resource.toString();
         }
+        Collections.sort(files);
+        return files.toString();
+    }
 
-        jar.close();
+    private static void collectFileFingerprints(File directory, String prefix, List<String> files) throws IOException {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    collectFileFingerprints(file, prefix + file.getName() + "/", files);
+                } else {
+                    files.add(prefix + file.getName() + ":" + file.length() + ":" + file.lastModified());
+                }
+            }
+        }
+    }
+
+    private static String getJarFile(URL resource) throws UnsupportedEncodingException {
+        // two cases: (note: "jar" is in the protocol. path is like: file://xxxx or nested://xxx)
+        // 1. jar:file:/path/to/jar!/
+        // 2. jar:nested:/path/to/jar!/BOOT-INF/classes!/
+        int realPathStartIndex = resource.getPath().indexOf(":");
+        String jarPath = resource.getPath().substring(realPathStartIndex + 1, resource.getPath().indexOf("!"));
+        return URLDecoder.decode(jarPath, StandardCharsets.UTF_8.name());
     }
 }
@@ -1,7 +1,9 @@
 package io.github.codeed.dbupgrader.utils;
 
 import com.google.common.base.*;
+import com.google.common.collect.*;
 import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.stats.*;
 import lombok.experimental.*;
 import lombok.extern.java.*;
 import net.sf.jsqlparser.*;
@@ -12,6 +14,7 @@ import net.sf.jsqlparser.statement.alter.*;
 import net.sf.jsqlparser.statement.insert.*;
 import org.apache.commons.lang3.*;
 
+import java.math.*;
 import java.sql.*;
 import java.util.*;
 import java.util.stream.*;
@@ -19,6 +22,11 @@ import java.util.stream.*;
 @Log
 @UtilityClass
 public class SqlHelperUtils {
+    /**
+     * max rows of one existence check or one multi-row insert of the smart insert methods
+     */
+    private static final int SMART_INSERT_CHUNK_SIZE = 500;
+
     public void closeQuietly(Connection conn) {
         if (conn != null) {
             try {
@@ -58,6 +66,10 @@ public class SqlHelperUtils {
     }
 
     public boolean tableExists(Connection conn, String tableName) throws SQLException {
+        SchemaSnapshot snapshot = getSchemaSnapshot(conn, tableName);
+        if (snapshot != null) {
+            return snapshot.tableExists(conn, tableName);
+        }
         try (ResultSet rs = conn.getMetaData().getTables(null, null, tableName, new String[]{"TABLE"})) {
             while (rs.next()) {
                 if (rs.getString("TABLE_NAME").equalsIgnoreCase(tableName)) {
@@ -78,6 +90,10 @@ public class SqlHelperUtils {
      * @throws SQLException if a database access error occurs
      */
     public boolean columnExists(Connection conn, String tableName, String columnName) throws SQLException {
+        SchemaSnapshot snapshot = getSchemaSnapshot(conn, tableName);
+        if (snapshot != null) {
+            return snapshot.columnExists(conn, tableName, columnName);
+        }
         try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, tableName, columnName)) {
             return rs.next();
         }
@@ -93,6 +109,10 @@ public class SqlHelperUtils {
      * @throws SQLException if a database access error occurs
      */
     public boolean indexExists(Connection conn, String tableName, String indexName) throws SQLException {
+        SchemaSnapshot snapshot = getSchemaSnapshot(conn, tableName);
+        if (snapshot != null) {
+            return snapshot.indexExists(conn, tableName, indexName);
+        }
         try (ResultSet rs = conn.getMetaData().getIndexInfo(conn.getCatalog(), null, tableName, false, false)) {
             while (rs.next()) {
                 String currentIndexName = rs.getString("INDEX_NAME");
@@ -104,8 +124,45 @@ public class SqlHelperUtils {
         }
     }
 
+    /**
+     * @return null if the DDL runs as is
+     */
+    private DdlExecutionPolicy getDdlExecutionPolicy(Connection conn) {
+        StatisticsTrackingConnection tracking = StatisticsTrackingConnection.of(conn);
+        return tracking == null ? null : tracking.getDdlExecutionPolicy();
+    }
+
+    /**
+     * @return null if the columns are added right away
+     */
+    private DdlCoalescer getDdlCoalescer(Connection conn) {
+        StatisticsTrackingConnection tracking = StatisticsTrackingConnection.of(conn);
+        return tracking == null ? null : tracking.getDdlCoalescer();
+    }
+
+    /**
+     * @return null if the connection isn't a statistics tracking connection
+     */
+    private SqlMetadataCache getMetadataCache(Connection conn) {
+        StatisticsTrackingConnection tracking = StatisticsTrackingConnection.of(conn);
+        return tracking == null ? null : tracking.getMetadataCache();
+    }
+
+    /**
+     * @return the snapshot of the current catalog if the connection has one, null for a table of another schema
+     */
+    private SchemaSnapshot getSchemaSnapshot(Connection conn, String tableName) {
+        StatisticsTrackingConnection tracking = StatisticsTrackingConnection.of(conn);
+        return tracking == null || tableName.indexOf('.') >= 0 ? null : tracking.getSchemaSnapshot();
+    }
+
     public void createTableIfNotExists(Connection conn, String tableName, String createTableSql) throws SQLException {
         if (!tableExists(conn, tableName)) {
+            DdlExecutionPolicy policy = getDdlExecutionPolicy(conn);
+            if (policy != null) {
+                policy.execute(conn, createTableSql);
+                return;
+            }
             try (Statement stmt = conn.createStatement()) {
                 stmt.execute(createTableSql);
             }
@@ -113,9 +170,14 @@ public class SqlHelperUtils {
     }
 
     /**
-     * Execute update with variable arguments
+     * Execute update with variable arguments. A DDL runs by the {@link DdlExecutionPolicy} of the connection if it has one.
      */
     public int executeUpdate(Connection conn, String sql, Object... args) throws SQLException {
+        DdlExecutionPolicy policy = getDdlExecutionPolicy(conn);
+        if (policy != null && args.length == 0 && SqlType.of(sql) == SqlType.DDL) {
+            policy.execute(conn, sql);
+            return 0;
+        }
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             for (int i = 0; i < args.length; i++) {
                 ps.setObject(i + 1, args[i]);
@@ -124,11 +186,32 @@ public class SqlHelperUtils {
         }
     }
 
+    /**
+     * Reuse one statement to write many rows, they are sent by JDBC batches of batchSize rows. Close it to send the last batch.
+     */
+    public BatchWriter batchWriter(Connection conn, String sql, int batchSize) throws SQLException {
+        return new BatchWriter(conn, sql, batchSize, false);
+    }
+
+    /**
+     * Same as {@link #batchWriter(Connection, String, int)}, and collects the generated keys, see {@link BatchWriter#getGeneratedKeys()}
+     */
+    public BatchWriter batchWriterWithGeneratedKeys(Connection conn, String sql, int batchSize) throws SQLException {
+        return new BatchWriter(conn, sql, batchSize, true);
+    }
+
+    /**
+     * Add the column if it doesn't exist.
+     * If DDL coalescing is on for the upgrade (see {@link UpgradeConfiguration#isCoalesceDdl()}), the column is only queued and
+     * added with the other queued columns of the table by one ALTER at the end of the version, or by {@link #flushDdl(Connection)}.
+     *
+     * @return false if the column exists, otherwise it's added, or queued when DDL coalescing is on
+     */
     public boolean smartAddColumn(Connection conn, String sql) throws SQLException {
         // Parse the INSERT statement
         net.sf.jsqlparser.statement.Statement statement = null;
         try {
-            statement = CCJSqlParserUtil.parse(sql);
+            statement = parse(conn, sql);
         } catch (JSQLParserException e) {
             throw new RuntimeException(e);
         }
@@ -147,18 +230,46 @@ public class SqlHelperUtils {
         AlterExpression.ColumnDataType colDataType =  columns.get(0);
         String column = colDataType.getColumnName();
         // check whether the column exists
-        try (ResultSet rs = conn.getMetaData().getColumns(ObjectUtils.firstNonNull(alter.getTable().getSchemaName(),
-                conn.getCatalog()), null, tableName, column)) {
-            if (rs.next()) {
-                log.info("Column already exists, skipping add column: " + sql);
-                return false;
-            }
+        if (columnExists(conn, alter, column)) {
+            log.info("Column already exists, skipping add column: " + sql);
+            return false;
+        }
+        DdlCoalescer coalescer = getDdlCoalescer(conn);
+        if (coalescer != null) {
+            // checked again when it's flushed, the same column may be queued twice in the version
+            coalescer.addColumn(alter);
+            return true;
         }
 
         executeUpdate(conn, sql);
         return true;
     }
 
+    /**
+     * Run the ALTERs queued by {@link #smartAddColumn(Connection, String)} now, one for each table.
+     * Use it when the upgrade needs the columns before the end of the version. Nothing happens if DDL coalescing is off.
+     */
+    public void flushDdl(Connection conn) throws SQLException {
+        DdlCoalescer coalescer = getDdlCoalescer(conn);
+        if (coalescer != null) {
+            coalescer.flush(conn);
+        }
+    }
+
+    /**
+     * Whether the column of the altered table exists, the table may be qualified by its schema.
+     */
+    private boolean columnExists(Connection conn, Alter alter, String column) throws SQLException {
+        String tableName = alter.getTable().getName();
+        if (alter.getTable().getSchemaName() == null && getSchemaSnapshot(conn, tableName) != null) {
+            return columnExists(conn, tableName, StringUtils.strip(column, "`\""));
+        }
+        try (ResultSet rs = conn.getMetaData().getColumns(ObjectUtils.firstNonNull(alter.getTable().getSchemaName(),
+                conn.getCatalog()), null, tableName, column)) {
+            return rs.next();
+        }
+    }
+
     /**
      * Insert and return the generated id
      */
@@ -212,7 +323,7 @@ public class SqlHelperUtils {
             }
             List<T> result = new ArrayList<>();
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
+                while (rs.next()) {
                     result.add(rowMapper.mapRow(rs));
                 }
             }
@@ -232,7 +343,7 @@ public class SqlHelperUtils {
     public boolean smartInsertWithPrimaryKeySet(Connection connection, String sql) throws SQLException {
         try {
             // Parse the INSERT statement
-            net.sf.jsqlparser.statement.Statement statement = CCJSqlParserUtil.parse(sql);
+            net.sf.jsqlparser.statement.Statement statement = parse(connection, sql);
             if (!(statement instanceof Insert)) {
                 throw new SQLException("This method only support insert sql");
             }
@@ -240,13 +351,8 @@ public class SqlHelperUtils {
             String tableName = insert.getTable().getName();
 
             // Get primary key columns for the table
-            List<String> pkColumns = new ArrayList<>();
-            try (ResultSet rs = connection.getMetaData().getPrimaryKeys(ObjectUtils.firstNonNull(insert.getTable().getSchemaName(),
-                    connection.getCatalog()), null, tableName)) {
-                while (rs.next()) {
-                    pkColumns.add(rs.getString("COLUMN_NAME").toLowerCase());
-                }
-            }
+            List<String> pkColumns = getPrimaryKeys(connection, ObjectUtils.firstNonNull(insert.getTable().getSchemaName(),
+                    connection.getCatalog()), tableName);
 
             if (pkColumns.isEmpty()) {
                 throw new SQLException(String.format("No primary key found for table: {}, consider use other methods to insert records",
@@ -272,7 +378,7 @@ public class SqlHelperUtils {
     public boolean smartInsertWithUniqueColumns(Connection connection, String sql, String... uniqueColumns) throws SQLException {
         try {
             // Parse the INSERT statement
-            net.sf.jsqlparser.statement.Statement statement = CCJSqlParserUtil.parse(sql);
+            net.sf.jsqlparser.statement.Statement statement = parse(connection, sql);
             if (!(statement instanceof Insert)) {
                 throw new SQLException("This method only support insert sql");
             }
@@ -320,9 +426,9 @@ public class SqlHelperUtils {
         String existenceCheckSql = existenceCheck.toString();
         // the last %s will be replaced for each other during insert later
         String insertSqlNoValuesFormat = String.format("INSERT INTO %s (%s) VALUES ", fullTableName, String.join(",", columns)) + "%s";
-        int insertCount = 0;
+        // compose args
+        List<List<Object>> keys = new ArrayList<>();
         for (ExpressionList exprList : multipleInsertValues) {
-            // compose args
             List<Object> whereArgs = new ArrayList<>();
             for (String uniqueColumn : uniqueColumns) {
                 int valueIndex = searchColumnIndex(columns, uniqueColumn);
@@ -331,6 +437,19 @@ public class SqlHelperUtils {
                 }
                 whereArgs.add(map2Value((Expression) exprList.get(valueIndex), false));
             }
+            keys.add(whereArgs);
+        }
+        if (multipleInsertValues.size() > 1) {
+            Integer insertCount = insertMissingRows(connection, fullTableName, uniqueColumns, multipleInsertValues, keys,
+                    insertSqlNoValuesFormat);
+            if (insertCount != null) {
+                return insertCount;
+            }
+        }
+        int insertCount = 0;
+        for (int i = 0; i < multipleInsertValues.size(); i++) {
+            ExpressionList exprList = multipleInsertValues.get(i);
+            List<Object> whereArgs = keys.get(i);
             // Check if record exists
             if (recordExists(connection, existenceCheckSql, whereArgs)) {
                 log.info("Record already exists, skipping insert: " + sql + "with args:" + whereArgs);
@@ -343,6 +462,134 @@ public class SqlHelperUtils {
         return insertCount;
     }
 
+    /**
+     * Check the keys of all rows by a few {@code (k1, k2) IN ((?, ?), ...)} queries, then insert the missing rows by a few multi-row
+     * inserts, instead of two statements per row.
+     * The keys are only compared in java when they are strings or numbers. Case-insensitive collations, trailing spaces and type
+     * conversions may make the database match a key which isn't equal in java, the rows are checked one by one in such cases.
+     *
+     * @return the inserted rows, or null if the rows should be checked one by one
+     */
+    private Integer insertMissingRows(Connection connection, String fullTableName, String[] uniqueColumns, List<ExpressionList> rows,
+                                      List<List<Object>> keys, String insertSqlNoValuesFormat) throws SQLException {
+        // the first row of each key, a later row with the same key is skipped like the row by row check does
+        Map<List<String>, Integer> rowOfKey = new LinkedHashMap<>();
+        Set<List<String>> looseKeys = new HashSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            List<String> key = normalizeKey(keys.get(i), false);
+            if (key == null) {
+                return null;
+            }
+            if (rowOfKey.putIfAbsent(key, i) == null && !looseKeys.add(normalizeKey(keys.get(i), true))) {
+                // eg: 'a' and 'A' are one key for the database if its collation is case-insensitive
+                return null;
+            }
+        }
+
+        String keyColumns = String.join(", ", uniqueColumns);
+        String rowPlaceholder = uniqueColumns.length == 1 ? "?" : "(" + StringUtils.repeat("?", ", ", uniqueColumns.length) + ")";
+        Set<List<String>> existing = new HashSet<>();
+        List<List<String>> distinctKeys = new ArrayList<>(rowOfKey.keySet());
+        for (List<List<String>> chunk : Lists.partition(distinctKeys, SMART_INSERT_CHUNK_SIZE)) {
+            String sql = "SELECT " + keyColumns + " FROM " + fullTableName + " WHERE "
+                    + (uniqueColumns.length == 1 ? keyColumns : "(" + keyColumns + ")")
+                    + " IN (" + StringUtils.repeat(rowPlaceholder, ", ", chunk.size()) + ")";
+            List<Object> args = new ArrayList<>();
+            for (List<String> key : chunk) {
+                args.addAll(keys.get(rowOfKey.get(key)));
+            }
+            List<List<Object>> found = queryForList(connection, sql, rs -> {
+                List<Object> values = new ArrayList<>();
+                for (int i = 1; i <= uniqueColumns.length; i++) {
+                    values.add(rs.getObject(i));
+                }
+                return values;
+            }, args.toArray());
+            for (List<Object> values : found) {
+                List<String> key = normalizeKey(values, false);
+                if (key == null || !rowOfKey.containsKey(key)) {
+                    // the database matched a key which is different in java
+                    return null;
+                }
+                existing.add(key);
+            }
+        }
+
+        List<String> missingRows = new ArrayList<>();
+        rowOfKey.forEach((key, row) -> {
+            if (!existing.contains(key)) {
+                missingRows.add(rows.get(row).toString());
+            }
+        });
+        if (missingRows.size() < rows.size()) {
+            log.info("Records already exist, skipped " + (rows.size() - missingRows.size()) + " of " + rows.size() + " rows for "
+                    + fullTableName);
+        }
+        for (List<String> chunk : Lists.partition(missingRows, SMART_INSERT_CHUNK_SIZE)) {
+            executeUpdate(connection, String.format(insertSqlNoValuesFormat, String.join(", ", chunk)));
+        }
+        return missingRows.size();
+    }
+
+    /**
+     * @param loose lower case the strings and strip their trailing spaces, like a case-insensitive collation with PAD SPACE
+     * @return null if any value is not a string or a number
+     */
+    private List<String> normalizeKey(List<Object> values, boolean loose) {
+        List<String> key = new ArrayList<>(values.size());
+        for (Object value : values) {
+            if (value instanceof String) {
+                String s = (String) value;
+                key.add("s:" + (loose ? StringUtils.stripEnd(s, " ").toLowerCase(Locale.ROOT) : s));
+            }
+            else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+                    || value instanceof BigInteger || value instanceof BigDecimal) {
+                key.add("n:" + new BigDecimal(value.toString()).stripTrailingZeros().toPlainString());
+            }
+            else {
+                // doubles and dates may differ in precision and time zone between java and the database
+                return null;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Parse the sql, the result is cached by the connection if it's a statistics tracking connection.
+     */
+    private net.sf.jsqlparser.statement.Statement parse(Connection conn, String sql) throws JSQLParserException {
+        SqlMetadataCache cache = getMetadataCache(conn);
+        net.sf.jsqlparser.statement.Statement statement = cache == null ? null : cache.getStatement(sql);
+        if (statement == null) {
+            statement = CCJSqlParserUtil.parse(sql);
+            if (cache != null) {
+                cache.putStatement(sql, statement);
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * The primary key columns in lower case, cached by the connection until a DDL on the table runs through it.
+     */
+    private List<String> getPrimaryKeys(Connection conn, String schema, String tableName) throws SQLException {
+        SqlMetadataCache cache = getMetadataCache(conn);
+        List<String> pkColumns = cache == null ? null : cache.getPrimaryKeys(schema, tableName);
+        if (pkColumns != null) {
+            return pkColumns;
+        }
+        pkColumns = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getPrimaryKeys(schema, null, tableName)) {
+            while (rs.next()) {
+                pkColumns.add(rs.getString("COLUMN_NAME").toLowerCase());
+            }
+        }
+        if (cache != null && !pkColumns.isEmpty()) {
+            cache.putPrimaryKeys(schema, tableName, pkColumns);
+        }
+        return pkColumns;
+    }
+
     private static boolean recordExists(Connection connection, String sql, List<Object> whereArgs) throws SQLException {
         return query(connection, sql, rs -> rs.getInt(1), whereArgs.toArray()) > 0;
     }
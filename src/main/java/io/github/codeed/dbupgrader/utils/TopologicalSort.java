@@ -2,50 +2,130 @@ package io.github.codeed.dbupgrader.utils;
 
 import java.util.*;
 
+/**
+ * Kahn's algorithm on an adjacency list, O((V + E) log V). Nodes which are ready at the same time are taken by name, so the
+ * order only depends on the graph, not on the iteration order of the map.
+ */
 public class TopologicalSort {
     /**
      * Performs topological sort on a directed graph
-     * @param graph Map where key is node and value is set of nodes it depends on
-     * @return Sorted list of nodes, or null if graph has cycles
+     * @param graph Map where key is node and value is set of nodes it depends on. Dependencies which are not keys are ignored
+     * @return Sorted list of nodes, the ready nodes by name
+     * @throws IllegalArgumentException with the nodes of a cycle if graph has cycles
      */
     public static List<String> sort(Map<String, Set<String>> graph) {
-        // Count incoming edges for each node
-        Map<String, Integer> inDegree = new HashMap<>();
-        for (String node : graph.keySet()) {
-            inDegree.put(node, 0);
-        }
-        
-        for (Set<String> edges : graph.values()) {
-            for (String edge : edges) {
-                inDegree.merge(edge, 1, Integer::sum);
+        Map<String, List<String>> dependents = new HashMap<>();
+        Map<String, Integer> inDegree = inDegrees(graph, dependents);
+        PriorityQueue<String> ready = new PriorityQueue<>();
+        for (Map.Entry<String, Integer> entry : inDegree.entrySet()) {
+            if (entry.getValue() == 0) {
+                ready.add(entry.getKey());
+            }
+        }
+
+        List<String> result = new ArrayList<>(graph.size());
+        while (!ready.isEmpty()) {
+            String node = ready.poll();
+            result.add(node);
+            for (String dependent : dependents.getOrDefault(node, Collections.emptyList())) {
+                if (inDegree.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
             }
         }
-        
-        // Add nodes with no dependencies to queue
-        Queue<String> queue = new LinkedList<>();
+
+        // If result size is less than graph size, there's a cycle
+        if (result.size() != graph.size()) {
+            throw cycle(graph, inDegree);
+        }
+        return result;
+    }
+
+    /**
+     * Groups the nodes of a directed graph into levels.
+     * Nodes in the same level don't depend on each other, and all dependencies of a node are in the previous levels.
+     * @param graph Map where key is node and value is set of nodes it depends on
+     * @return levels of nodes, each level sorted by name
+     * @throws IllegalArgumentException with the nodes of a cycle if graph has cycles
+     */
+    public static List<List<String>> levels(Map<String, Set<String>> graph) {
+        Map<String, List<String>> dependents = new HashMap<>();
+        Map<String, Integer> inDegree = inDegrees(graph, dependents);
+        List<String> current = new ArrayList<>();
         for (Map.Entry<String, Integer> entry : inDegree.entrySet()) {
             if (entry.getValue() == 0) {
-                queue.offer(entry.getKey());
+                current.add(entry.getKey());
             }
         }
-        
-        List<String> result = new ArrayList<>();
-        while (!queue.isEmpty()) {
-            String node = queue.poll();
-            result.add(node);
-            
-            // For each dependent node, decrease inDegree by 1
-            for (String neighbor : graph.keySet()) {
-                if (graph.get(neighbor).contains(node)) {
-                    inDegree.put(neighbor, inDegree.get(neighbor) - 1);
-                    if (inDegree.get(neighbor) == 0) {
-                        queue.offer(neighbor);
+
+        List<List<String>> levels = new ArrayList<>();
+        int visited = 0;
+        while (!current.isEmpty()) {
+            Collections.sort(current);
+            levels.add(current);
+            visited += current.size();
+            List<String> next = new ArrayList<>();
+            for (String node : current) {
+                for (String dependent : dependents.getOrDefault(node, Collections.emptyList())) {
+                    if (inDegree.merge(dependent, -1, Integer::sum) == 0) {
+                        next.add(dependent);
                     }
                 }
             }
+            current = next;
         }
-        
-        // If result size is less than graph size, there's a cycle
-        return result.size() == graph.size() ? result : null;
+
+        // If not all nodes are visited, there's a cycle
+        if (visited != graph.size()) {
+            throw cycle(graph, inDegree);
+        }
+        return levels;
+    }
+
+    /**
+     * @param dependents filled with the nodes depending on each node
+     * @return the number of dependencies of each node
+     */
+    private static Map<String, Integer> inDegrees(Map<String, Set<String>> graph, Map<String, List<String>> dependents) {
+        Map<String, Integer> inDegree = new HashMap<>(graph.size() * 2);
+        for (Map.Entry<String, Set<String>> entry : graph.entrySet()) {
+            int degree = 0;
+            for (String dependency : entry.getValue()) {
+                if (graph.containsKey(dependency)) {
+                    dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(entry.getKey());
+                    degree++;
+                }
+            }
+            inDegree.put(entry.getKey(), degree);
+        }
+        return inDegree;
+    }
+
+    /**
+     * Every node left with dependencies depends on another left node, so following them from any left node ends in a cycle.
+     */
+    private static IllegalArgumentException cycle(Map<String, Set<String>> graph, Map<String, Integer> inDegree) {
+        String node = null;
+        for (Map.Entry<String, Integer> entry : inDegree.entrySet()) {
+            if (entry.getValue() > 0 && (node == null || entry.getKey().compareTo(node) < 0)) {
+                node = entry.getKey();
+            }
+        }
+        List<String> path = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+        while (!positions.containsKey(node)) {
+            positions.put(node, path.size());
+            path.add(node);
+            String next = null;
+            for (String dependency : graph.get(node)) {
+                if (inDegree.getOrDefault(dependency, 0) > 0 && (next == null || dependency.compareTo(next) < 0)) {
+                    next = dependency;
+                }
+            }
+            node = next;
+        }
+        List<String> cycle = new ArrayList<>(path.subList(positions.get(node), path.size()));
+        cycle.add(node);
+        return new IllegalArgumentException("Circular dependency: " + String.join(" -> ", cycle) + " (each node depends on the next)");
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,84 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.asyncscripts.*;
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AsyncUpgradeTest {
+    private JdbcDataSource dataSource;
+    private UpgradeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.asyncscripts")
+                .targetVersion(2)
+                .application("server")
+                .build();
+        V2AsyncBackfill.release = new CountDownLatch(1);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        V2AsyncBackfill.release.countDown();
+    }
+
+    /**
+     * The upgrade returns while the async classes run, the handle tells when they finished and which ones failed
+     */
+    @Test
+    public void handleTracksCompletionAndFailures() throws Exception {
+        UpgradeReport report = new DbUpgrader("async", dataSource, configuration).upgrade();
+        AsyncUpgradeHandle handle = report.getAsyncUpgrades();
+        assertEquals(new HashSet<>(Arrays.asList(V2AsyncBackfill.class.getName(), V2AsyncFailure.class.getName())),
+                handle.getFutures().keySet());
+        assertFalse(handle.isDone());
+        assertFalse(handle.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, count("events"));
+
+        V2AsyncBackfill.release.countDown();
+        assertTrue(handle.await(10, TimeUnit.SECONDS));
+        assertTrue(handle.isDone());
+        Map<String, Throwable> failures = handle.getFailures();
+        assertEquals(Collections.singleton(V2AsyncFailure.class.getName()), failures.keySet());
+        assertEquals("async failed", failures.get(V2AsyncFailure.class.getName()).getMessage());
+        assertEquals(3, count("events"));
+        // the failed class is not recorded, the next run executes it again
+        assertEquals(Arrays.asList(V1CreateEvents.class.getName(), V2AsyncBackfill.class.getName()), executedClasses());
+    }
+
+    @Test
+    public void failedClassRunsAgain() throws Exception {
+        V2AsyncBackfill.release.countDown();
+        new DbUpgrader("async", dataSource, configuration).upgrade().getAsyncUpgrades().await();
+
+        // the second run has only the failed class left
+        AsyncUpgradeHandle handle = new DbUpgrader("async", dataSource, configuration).upgrade().getAsyncUpgrades();
+        assertEquals(Collections.singleton(V2AsyncFailure.class.getName()), handle.getFutures().keySet());
+        handle.await();
+        assertEquals(Collections.singleton(V2AsyncFailure.class.getName()), handle.getFailures().keySet());
+        assertEquals(3, count("events"));
+    }
+
+    private List<String> executedClasses() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.queryForList(conn, "select class_name from " + configuration.getUpgradeHistoryTable()
+                    + " order by class_name", rs -> rs.getString(1));
+        }
+    }
+
+    private int count(String table) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.query(conn, "select count(*) from " + table, rs -> rs.getInt(1));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkedMigrationTest {
+    private JdbcDataSource dataSource;
+    private UpgradeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.upgradescripts")
+                .targetVersion(3)
+                .application("server")
+                .build();
+        try (Connection conn = dataSource.getConnection()) {
+            SqlHelperUtils.createTableIfNotExists(conn, configuration.getUpgradeConfigurationTable(),
+                    String.format(configuration.getCreateConfigurationTableSql(), configuration.getUpgradeConfigurationTable()));
+            SqlHelperUtils.executeUpdate(conn, "create table items (id bigint primary key, migrated boolean default false)");
+            SqlHelperUtils.executeUpdate(conn, "insert into items (id) select x from system_range(1, 10)");
+        }
+    }
+
+    /**
+     * A failed chunk is rolled back, the next run starts after the last committed chunk
+     */
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        List<Long> ranges = new ArrayList<>();
+        SQLException failure = assertThrows(SQLException.class, () -> migration().run((conn, from, to) -> {
+            migrate(conn, from, to);
+            if (to > 6) {
+                throw new SQLException("node died");
+            }
+        }));
+        assertEquals("node died", failure.getMessage());
+        assertEquals("6", checkpoint());
+        assertEquals(6, migratedRows());
+
+        assertEquals(2, migration().run((conn, from, to) -> {
+            ranges.add(from);
+            ranges.add(to);
+            migrate(conn, from, to);
+        }));
+        assertEquals(Arrays.asList(6L, 9L, 9L, 10L), ranges);
+        assertEquals("10", checkpoint());
+        assertEquals(10, migratedRows());
+
+        // finished, nothing is left after the checkpoint
+        assertEquals(0, migration().run((conn, from, to) -> {
+            throw new AssertionError("no chunk is left");
+        }));
+    }
+
+    @Test
+    public void clearCheckpointStartsOver() throws Exception {
+        ChunkedMigration migration = migration();
+        assertEquals(4, migration.run(ChunkedMigrationTest::migrate));
+        migration.clearCheckpoint();
+        assertNull(checkpoint());
+
+        List<Long> starts = new ArrayList<>();
+        assertEquals(4, migration.run((conn, from, to) -> starts.add(from)));
+        assertEquals(Arrays.asList(Long.MIN_VALUE, 3L, 6L, 9L), starts);
+    }
+
+    private ChunkedMigration migration() {
+        return ChunkedMigration.builder(dataSource, configuration, "items")
+                .table("items")
+                .chunkSize(3)
+                .minChunkSize(3)
+                .maxChunkSize(3)
+                .build();
+    }
+
+    private static void migrate(Connection conn, long from, long to) throws SQLException {
+        SqlHelperUtils.executeUpdate(conn, "update items set migrated = true where id > ? and id <= ?", from, to);
+    }
+
+    private String checkpoint() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.query(conn, "select value from " + configuration.getUpgradeConfigurationTable() + " where key_name = ?",
+                    rs -> rs.getString(1), ChunkedMigration.CONFIG_CHUNK_CHECKPOINT + "-server-items");
+        }
+    }
+
+    private int migratedRows() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.query(conn, "select count(*) from items where migrated", rs -> rs.getInt(1));
+        }
+    }
+}
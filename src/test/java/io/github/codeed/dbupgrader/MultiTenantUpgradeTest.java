@@ -0,0 +1,85 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import javax.sql.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultiTenantUpgradeTest {
+
+    @Test
+    public void budgetWaitsForAClosedConnection() throws Exception {
+        ConnectionBudgetDataSource budget = new ConnectionBudgetDataSource(newDataSource(), 2, 100);
+        Connection first = budget.getConnection();
+        Connection second = budget.getConnection();
+        SQLException exhausted = assertThrows(SQLException.class, budget::getConnection);
+        assertTrue(exhausted.getMessage().startsWith("No connection of the tenant connection budget 2 is free after 100ms"));
+
+        first.close();
+        // a connection closed twice gives its permit back once
+        first.close();
+        Connection third = budget.getConnection();
+        assertThrows(SQLException.class, budget::getConnection);
+        second.close();
+        third.close();
+    }
+
+    /**
+     * The branches get what the budget leaves after the session and the async pool, a tenant which fails doesn't stop the others
+     */
+    @Test
+    public void upgradeAllWithinTheBudget() throws Exception {
+        UpgradeConfiguration configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.parallelscripts")
+                .targetVersion(1)
+                .application("server")
+                .parallelUpgrade(true)
+                .parallelism(4)
+                .tenantParallelism(3)
+                .tenantConnectionBudget(4)
+                .tenantConnectionTimeoutMillis(2_000)
+                .build();
+        Map<String, DataSource> tenants = new LinkedHashMap<>();
+        tenants.put("first", newDataSource());
+        tenants.put("broken", newDataSource());
+        tenants.put("second", newDataSource());
+        // V1CreateTables fails on it
+        try (Connection conn = tenants.get("broken").getConnection()) {
+            SqlHelperUtils.executeUpdate(conn, "create table orders (id int primary key)");
+        }
+
+        MultiTenantUpgradeResult result = DbUpgrader.upgradeAll(tenants, configuration);
+        assertEquals(Arrays.asList("first", "broken", "second"), new ArrayList<>(result.getResults().keySet()));
+        assertFalse(result.isAllSucceeded());
+        assertEquals(Collections.singleton("broken"), result.getFailures().keySet());
+        for (String tenant : Arrays.asList("first", "second")) {
+            try (Connection conn = tenants.get(tenant).getConnection()) {
+                assertEquals(1, (int) SqlHelperUtils.query(conn, "select count(*) from payments", rs -> rs.getInt(1)));
+            }
+            assertEquals(3, result.getResults().get(tenant).getReport().getClasses().size());
+        }
+    }
+
+    @Test
+    public void budgetCountsTheAsyncPool() {
+        UpgradeConfiguration.Builder builder = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.parallelscripts")
+                .targetVersion(1)
+                .application("server")
+                .asyncPoolSize(2)
+                .tenantConnectionBudget(2);
+        assertThrows(IllegalArgumentException.class, builder::build);
+        assertEquals(3, builder.tenantConnectionBudget(3).build().reservedConnections());
+    }
+
+    private static DataSource newDataSource() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        return dataSource;
+    }
+}
@@ -0,0 +1,88 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.parallelscripts.*;
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelUpgradeTest {
+    private JdbcDataSource dataSource;
+    private UpgradeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.parallelscripts")
+                .targetVersion(1)
+                .application("server")
+                .parallelUpgrade(true)
+                .parallelism(2)
+                .build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        V1InsertPayment.failing = false;
+    }
+
+    @Test
+    public void levelsCommitInOrder() throws Exception {
+        UpgradeReport report = new DbUpgrader("parallel", dataSource, configuration).upgrade();
+        assertEquals(3, report.getClasses().size());
+        assertEquals(Arrays.asList(V1CreateTables.class.getName(), V1InsertOrder.class.getName(), V1InsertPayment.class.getName()),
+                executedClasses());
+        assertEquals(1, count("orders"));
+        assertEquals(1, count("payments"));
+        assertEquals("1", currentVersion());
+    }
+
+    /**
+     * A failed branch rolls back every branch of its level, the level before it stays committed with its history
+     */
+    @Test
+    public void failedBranchRollsBackItsLevel() throws Exception {
+        V1InsertPayment.failing = true;
+        SQLException failure = assertThrows(SQLException.class, () -> new DbUpgrader("parallel", dataSource, configuration).upgrade());
+        assertEquals("payment gateway is down", failure.getMessage());
+        assertEquals(Collections.singletonList(V1CreateTables.class.getName()), executedClasses());
+        assertEquals(0, count("orders"));
+        assertEquals(0, count("payments"));
+        assertEquals("0", currentVersion());
+
+        // the committed level is not executed again, its tables exist
+        V1InsertPayment.failing = false;
+        new DbUpgrader("parallel", dataSource, configuration).upgrade();
+        assertEquals(Arrays.asList(V1CreateTables.class.getName(), V1InsertOrder.class.getName(), V1InsertPayment.class.getName()),
+                executedClasses());
+        assertEquals(1, count("orders"));
+        assertEquals(1, count("payments"));
+        assertEquals("1", currentVersion());
+    }
+
+    private List<String> executedClasses() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.queryForList(conn, "select class_name from " + configuration.getUpgradeHistoryTable()
+                    + " order by class_name", rs -> rs.getString(1));
+        }
+    }
+
+    private int count(String table) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.query(conn, "select count(*) from " + table, rs -> rs.getInt(1));
+        }
+    }
+
+    private String currentVersion() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return SqlHelperUtils.query(conn, "select value from " + configuration.getUpgradeConfigurationTable() + " where key_name = ?",
+                    rs -> rs.getString(1), UpgradeConfiguration.CONFIG_CURRENT_VERSION + "-server");
+        }
+    }
+}
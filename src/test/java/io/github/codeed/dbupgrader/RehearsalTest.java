@@ -0,0 +1,65 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.rehearsalscripts.*;
+import io.github.codeed.dbupgrader.stats.*;
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RehearsalTest {
+    private JdbcDataSource dataSource;
+    private UpgradeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.rehearsalscripts")
+                .targetVersion(1)
+                .application("server")
+                .rehearsal(true)
+                .build();
+        try (Connection conn = dataSource.getConnection()) {
+            SqlHelperUtils.executeUpdate(conn, "create table ledger (id int primary key)");
+        }
+    }
+
+    /**
+     * A commit or a DDL of an upgrade class is refused, the class is rolled back to its savepoint and the next classes still run.
+     * Nothing of the rehearsal is committed.
+     */
+    @Test
+    public void refusesToCommit() throws Exception {
+        UpgradeReport report = new DbUpgrader("rehearsal", dataSource, configuration).upgrade();
+        assertTrue(report.isRehearsal());
+
+        Map<String, UpgradeReport.ClassReport> classes = new HashMap<>();
+        report.getClasses().forEach(classReport -> classes.put(classReport.getClassName(), classReport));
+        assertTrue(classes.get(V1CommitLedger.class.getName()).getError().startsWith("Rehearsal refuses to commit the transaction"));
+        assertTrue(classes.get(V1CreateAudit.class.getName()).getError().startsWith("Rehearsal refuses the statement"));
+        assertNull(classes.get(V1InsertLedger.class.getName()).getError());
+        assertEquals(2, classes.get(V1InsertLedger.class.getName()).getInsertedRows());
+
+        List<String> refused = new ArrayList<>();
+        for (RehearsalRecorder.RecordedStatement statement : report.getRehearsedStatements()) {
+            if (statement.isRefused()) {
+                refused.add(statement.getClassName() + ": " + statement.getSql());
+            }
+        }
+        assertEquals(Arrays.asList(V1CommitLedger.class.getName() + ": COMMIT",
+                V1CreateAudit.class.getName() + ": create table audit (id int primary key)"), refused);
+
+        try (Connection conn = dataSource.getConnection()) {
+            assertEquals(0, (int) SqlHelperUtils.query(conn, "select count(*) from ledger", rs -> rs.getInt(1)));
+            assertFalse(SqlHelperUtils.tableExists(conn, "audit"));
+            assertEquals(0, (int) SqlHelperUtils.query(conn, "select count(*) from " + configuration.getUpgradeHistoryTable(),
+                    rs -> rs.getInt(1)));
+        }
+    }
+}
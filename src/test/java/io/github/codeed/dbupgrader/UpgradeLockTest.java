@@ -0,0 +1,114 @@
+package io.github.codeed.dbupgrader;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.h2.jdbcx.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UpgradeLockTest {
+    private JdbcDataSource dataSource;
+    private UpgradeConfiguration configuration;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=VALUE;DB_CLOSE_DELAY=-1");
+        configuration = UpgradeConfiguration.builder()
+                .upgradeClassPackage("io.github.codeed.dbupgrader.upgradescripts")
+                .targetVersion(3)
+                .application("server")
+                .clusterLock(true)
+                .lockLeaseMillis(200)
+                .lockPollMillis(10)
+                .lockMaxPollMillis(50)
+                .lockWaitTimeoutMillis(5_000)
+                .build();
+        try (Connection conn = dataSource.getConnection()) {
+            SqlHelperUtils.createTableIfNotExists(conn, configuration.getUpgradeConfigurationTable(),
+                    String.format(configuration.getCreateConfigurationTableSql(), configuration.getUpgradeConfigurationTable()));
+        }
+    }
+
+    @Test
+    public void onlyOneHolder() throws Exception {
+        UpgradeLock first = new UpgradeLock("first", dataSource, configuration);
+        UpgradeLock second = new UpgradeLock("second", dataSource, configuration);
+        assertTrue(first.tryAcquire());
+        assertFalse(second.tryAcquire());
+
+        first.release();
+        assertTrue(second.tryAcquire());
+        second.release();
+    }
+
+    @Test
+    public void expiredLockIsTakenOver() throws Exception {
+        UpgradeLock crashed = new UpgradeLock("crashed", dataSource, configuration);
+        UpgradeLock next = new UpgradeLock("next", dataSource, configuration);
+        assertTrue(crashed.tryAcquire());
+        // never renewed
+        Thread.sleep(300);
+        assertTrue(next.tryAcquire());
+
+        assertFalse(crashed.renew());
+        assertTrue(crashed.isLost());
+        // the stale holder must not delete the lock of the new holder
+        crashed.release();
+        UpgradeLock other = new UpgradeLock("other", dataSource, configuration);
+        assertFalse(other.tryAcquire());
+        other.release();
+        next.release();
+    }
+
+    @Test
+    public void renewalKeepsTheLock() throws Exception {
+        UpgradeLock holder = new UpgradeLock("holder", dataSource, configuration);
+        assertTrue(holder.tryAcquire());
+        holder.startRenewal();
+        Thread.sleep(500);
+        UpgradeLock other = new UpgradeLock("other", dataSource, configuration);
+        assertFalse(other.tryAcquire());
+        other.release();
+        assertFalse(holder.isLost());
+        holder.release();
+    }
+
+    @Test
+    public void leaseNotRenewedInTimeIsLost() throws Exception {
+        UpgradeLock holder = new UpgradeLock("holder", dataSource, configuration);
+        assertTrue(holder.tryAcquire());
+        assertFalse(holder.isLost());
+        // eg: the renewal is blocked, nobody took the lock over yet
+        Thread.sleep(300);
+        assertTrue(holder.isLost());
+        assertFalse(holder.renew());
+        holder.release();
+    }
+
+    @Test
+    public void waiterAcquiresAfterHolderReleases() throws Exception {
+        UpgradeLock holder = new UpgradeLock("holder", dataSource, configuration);
+        holder.acquireOrWait();
+
+        Thread upgrade = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            holder.release();
+        });
+        upgrade.start();
+        UpgradeLock waiter = new UpgradeLock("waiter", dataSource, configuration);
+        // the version is not checked, the waiter runs the upgrade under the lock to execute what is missing
+        waiter.acquireOrWait();
+        assertFalse(waiter.isLost());
+        upgrade.join();
+        waiter.release();
+    }
+}
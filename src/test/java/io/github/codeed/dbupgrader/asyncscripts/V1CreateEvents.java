@@ -0,0 +1,14 @@
+package io.github.codeed.dbupgrader.asyncscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 1)
+public class V1CreateEvents implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.createTableIfNotExists(connection, "events", "create table events (id int primary key)");
+    }
+}
@@ -0,0 +1,29 @@
+package io.github.codeed.dbupgrader.asyncscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+import java.util.concurrent.*;
+
+@DbUpgrade(version = 2, executionMode = DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL)
+public class V2AsyncBackfill implements UpgradeProcess {
+    /**
+     * the tests hold the backfill until they release it
+     */
+    public static volatile CountDownLatch release = new CountDownLatch(0);
+
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        try {
+            if (!release.await(10, TimeUnit.SECONDS)) {
+                throw new SQLException("backfill is never released");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+        SqlHelperUtils.executeUpdate(connection, "insert into events values (1), (2), (3)");
+    }
+}
@@ -0,0 +1,13 @@
+package io.github.codeed.dbupgrader.asyncscripts;
+
+import io.github.codeed.dbupgrader.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 2, executionMode = DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL)
+public class V2AsyncFailure implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        throw new SQLException("async failed");
+    }
+}
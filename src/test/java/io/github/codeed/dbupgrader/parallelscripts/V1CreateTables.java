@@ -0,0 +1,16 @@
+package io.github.codeed.dbupgrader.parallelscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+// not "if not exists", it fails if it runs twice
+@DbUpgrade(version = 1)
+public class V1CreateTables implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "create table orders (id int primary key)");
+        SqlHelperUtils.executeUpdate(connection, "create table payments (id int primary key)");
+    }
+}
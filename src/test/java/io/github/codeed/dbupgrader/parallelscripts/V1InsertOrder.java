@@ -0,0 +1,14 @@
+package io.github.codeed.dbupgrader.parallelscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 1, after = "V1CreateTables")
+public class V1InsertOrder implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "insert into orders values (1)");
+    }
+}
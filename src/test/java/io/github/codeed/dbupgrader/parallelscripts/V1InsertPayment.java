@@ -0,0 +1,23 @@
+package io.github.codeed.dbupgrader.parallelscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+// runs in the same level as V1InsertOrder
+@DbUpgrade(version = 1, after = "V1CreateTables")
+public class V1InsertPayment implements UpgradeProcess {
+    /**
+     * set by the tests to fail the class after its insert
+     */
+    public static volatile boolean failing;
+
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "insert into payments values (1)");
+        if (failing) {
+            throw new SQLException("payment gateway is down");
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package io.github.codeed.dbupgrader.rehearsalscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 1)
+public class V1CommitLedger implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "insert into ledger values (1)");
+        connection.commit();
+    }
+}
@@ -0,0 +1,14 @@
+package io.github.codeed.dbupgrader.rehearsalscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 1, after = "V1CommitLedger")
+public class V1CreateAudit implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "create table audit (id int primary key)");
+    }
+}
@@ -0,0 +1,14 @@
+package io.github.codeed.dbupgrader.rehearsalscripts;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.utils.*;
+
+import java.sql.*;
+
+@DbUpgrade(version = 1, after = "V1CreateAudit")
+public class V1InsertLedger implements UpgradeProcess {
+    @Override
+    public void upgrade(DbUpgrader migrator, Connection connection) throws SQLException {
+        SqlHelperUtils.executeUpdate(connection, "insert into ledger values (2), (3)");
+    }
+}
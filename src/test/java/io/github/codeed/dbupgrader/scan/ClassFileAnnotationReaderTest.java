@@ -0,0 +1,142 @@
+package io.github.codeed.dbupgrader.scan;
+
+import io.github.codeed.dbupgrader.*;
+import io.github.codeed.dbupgrader.upgradescripts.*;
+import org.apache.commons.io.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.lang.annotation.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClassFileAnnotationReaderTest {
+
+    @Test
+    public void defaults() throws IOException {
+        UpgradeDescriptor descriptor = read(V1AddTableUser.class);
+        assertEquals(V1AddTableUser.class.getName(), descriptor.getClassName());
+        assertEquals(1, descriptor.getVersion());
+        assertEquals("", descriptor.getAfter());
+        assertEquals(100, descriptor.getMaxAffectRecords());
+        assertEquals(DbUpgrade.ExecutionMode.SEQUENTIAL, descriptor.getExecutionMode());
+    }
+
+    @Test
+    public void allAttributes() throws IOException {
+        UpgradeDescriptor descriptor = read(AllAttributes.class);
+        assertEquals(AllAttributes.class.getName(), descriptor.getClassName());
+        assertEquals(7, descriptor.getVersion());
+        assertEquals("V7First", descriptor.getAfter());
+        assertEquals(-1, descriptor.getMaxAffectRecords());
+        assertEquals(DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL, descriptor.getExecutionMode());
+    }
+
+    @Test
+    public void sameAsReflection() throws IOException {
+        for (Class<?> c : new Class<?>[]{V1AddTableUser.class, V1AddAdminRecord.class, V2AddTableStudent.class, V3SmartInsert.class,
+                AllAttributes.class, AfterOtherAnnotations.class, Constants.class}) {
+            DbUpgrade upgrade = c.getDeclaredAnnotation(DbUpgrade.class);
+            UpgradeDescriptor descriptor = read(c);
+            assertEquals(upgrade.version(), descriptor.getVersion());
+            assertEquals(upgrade.after(), descriptor.getAfter());
+            assertEquals(upgrade.maxAffectRecords(), descriptor.getMaxAffectRecords());
+            assertEquals(upgrade.executionMode(), descriptor.getExecutionMode());
+        }
+    }
+
+    /**
+     * The arrays, nested annotations, enums and class values of the annotations before @DbUpgrade are skipped
+     */
+    @Test
+    public void afterOtherAnnotations() throws IOException {
+        UpgradeDescriptor descriptor = read(AfterOtherAnnotations.class);
+        assertEquals(3, descriptor.getVersion());
+        assertEquals("V3First", descriptor.getAfter());
+        assertEquals(DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL, descriptor.getExecutionMode());
+    }
+
+    /**
+     * long and double constants take two entries of the constant pool
+     */
+    @Test
+    public void wideConstants() throws IOException {
+        UpgradeDescriptor descriptor = read(Constants.class);
+        assertEquals(5, descriptor.getVersion());
+        assertEquals(Integer.MAX_VALUE, descriptor.getMaxAffectRecords());
+    }
+
+    @Test
+    public void notAnnotated() throws IOException {
+        assertNull(read(ClassFileAnnotationReaderTest.class));
+        assertNull(read(OtherAnnotationOnly.class));
+        // the descriptor of DbUpgrade is in the constant pool, but it's the type of a field
+        assertNull(read(DbUpgradeField.class));
+    }
+
+    /**
+     * Like Class#getDeclaredAnnotation, the inherited annotation is not in the class file of the sub class
+     */
+    @Test
+    public void inheritedIsNotDeclared() throws IOException {
+        assertNull(read(SubClass.class));
+    }
+
+    @Test
+    public void invalidClassFile() {
+        assertThrows(IllegalArgumentException.class, () -> ClassFileAnnotationReader.read(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertThrows(IllegalArgumentException.class, () -> ClassFileAnnotationReader.read(new byte[]{(byte) 0xCA, (byte) 0xFE}));
+    }
+
+    private static UpgradeDescriptor read(Class<?> c) throws IOException {
+        try (InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class")) {
+            return ClassFileAnnotationReader.read(IOUtils.toByteArray(in));
+        }
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Tags {
+        String[] value();
+
+        Class<?>[] types() default {};
+
+        Nested nested() default @Nested(ElementType.FIELD);
+    }
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface Nested {
+        ElementType value();
+
+        int[] numbers() default {1, 2};
+    }
+
+    @DbUpgrade(version = 7, after = "V7First", maxAffectRecords = -1, executionMode = DbUpgrade.ExecutionMode.ASYNC_EXIT_IF_FAIL)
+    static class AllAttributes {
+    }
+
+    @Tags(value = {"a", "b"}, types = {String.class, int[].class}, nested = @Nested(value = ElementType.TYPE, numbers = {}))
+    @Deprecated
+    @DbUpgrade(executionMode = DbUpgrade.ExecutionMode.ASYNC_LOG_IF_FAIL, after = "V3First", version = 3)
+    static class AfterOtherAnnotations {
+    }
+
+    @DbUpgrade(version = 5, maxAffectRecords = Integer.MAX_VALUE)
+    static class Constants {
+        static final long LONG = 1L << 40;
+        static final double DOUBLE = 0.5;
+        long value = LONG;
+        double ratio = DOUBLE;
+        String text = "text";
+    }
+
+    @Tags("a")
+    static class OtherAnnotationOnly {
+    }
+
+    static class DbUpgradeField {
+        DbUpgrade upgrade;
+    }
+
+    static class SubClass extends AllAttributes {
+    }
+}
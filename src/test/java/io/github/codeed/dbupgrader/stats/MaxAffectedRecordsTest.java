@@ -0,0 +1,69 @@
+package io.github.codeed.dbupgrader.stats;
+
+import io.github.codeed.dbupgrader.utils.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The limit is checked when each statement returns, the statement which crosses it fails and the rollback undoes its rows
+ */
+public class MaxAffectedRecordsTest {
+    private StatisticsTrackingConnection conn;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        conn = new StatisticsTrackingConnection(DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID()
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE"));
+        SqlHelperUtils.executeUpdate(conn, "create table items (id int primary key)");
+        conn.setAutoCommit(false);
+        conn.getStats().reset();
+        conn.setContext("V1Items");
+        conn.setMaxAffectedRecords(3);
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void statementCrossingTheLimitFails() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            assertEquals(2, stmt.executeUpdate("insert into items values (1), (2)"));
+            SQLException e = assertThrows(SQLException.class, () -> stmt.executeUpdate("insert into items values (3), (4)"));
+            assertTrue(e.getMessage().startsWith("Upgrade V1Items affected 4 records, which exceeds the maximum limit of 3"));
+        }
+        // the rows of the failed statement are written, the upgrade transaction is rolled back
+        assertEquals(4, count());
+        conn.rollback();
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void batchCrossingTheLimitFails() throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("insert into items values (?)")) {
+            for (int i = 1; i <= 4; i++) {
+                ps.setInt(1, i);
+                ps.addBatch();
+            }
+            assertThrows(SQLException.class, ps::executeBatch);
+        }
+        conn.rollback();
+        assertEquals(0, count());
+    }
+
+    @Test
+    public void noLimit() throws SQLException {
+        conn.setMaxAffectedRecords(-1);
+        assertEquals(10, SqlHelperUtils.executeUpdate(conn, "insert into items select x from system_range(1, 10)"));
+        assertEquals(10, conn.getStats().getTotalAffectedRecords());
+    }
+
+    private int count() throws SQLException {
+        return SqlHelperUtils.query(conn, "select count(*) from items", rs -> rs.getInt(1));
+    }
+}
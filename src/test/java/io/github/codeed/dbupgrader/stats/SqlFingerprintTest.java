@@ -0,0 +1,56 @@
+package io.github.codeed.dbupgrader.stats;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SqlFingerprintTest {
+
+    @Test
+    public void literals() {
+        assertEquals("select * from t where id = ? and name = ?", SqlFingerprint.of("SELECT * FROM t WHERE id = 42 AND name = 'Tom'"));
+        assertEquals("update t set price = ?, code = ? where id = ?",
+                SqlFingerprint.of("update t set price = 1.5e3, code = 0x1F where id = 7"));
+        // escaped quotes don't end the string
+        assertEquals("insert into t (name) values (?)", SqlFingerprint.of("insert into t (name) values ('it''s \\' here')"));
+        assertEquals(SqlFingerprint.of("select * from t where id = 1"), SqlFingerprint.of("select * from t where id = 2"));
+    }
+
+    @Test
+    public void identifiersAreKept() {
+        // a digit inside an identifier is not a literal, quoted identifiers keep their case
+        assertEquals("select col1 from t2 where `Col2` = ? and \"X3\" = ?",
+                SqlFingerprint.of("select col1 from T2 where `Col2` = 3 and \"X3\" = 'a'"));
+        assertEquals("select $a, _b from t", SqlFingerprint.of("select $a, _b from t"));
+    }
+
+    @Test
+    public void whitespaces() {
+        assertEquals("select * from t where id = ?", SqlFingerprint.of("  select *\n\tfrom   t\r\n where id =  1 "));
+        assertEquals("", SqlFingerprint.of(null));
+        assertEquals("", SqlFingerprint.of("   "));
+    }
+
+    @Test
+    public void inLists() {
+        String one = SqlFingerprint.of("select * from t where id in (1)");
+        assertEquals("select * from t where id in (?)", one);
+        assertEquals(one, SqlFingerprint.of("select * from t where id in (1, 2, 3)"));
+        assertEquals(one, SqlFingerprint.of("select * from t where id in ( 'a' ,'b','c' )"));
+        assertEquals(one, SqlFingerprint.of("select * from t where id in (?, ?)"));
+        // row value IN lists, each row becomes (?) and the rows one (?)
+        String rows = SqlFingerprint.of("select * from t where (a, b) in ((1, 'x'))");
+        assertEquals("select * from t where (a, b) in ((?))", rows);
+        assertEquals(rows, SqlFingerprint.of("select * from t where (a, b) in ((1, 'x'), (2, 'y'), (3, 'z'))"));
+        // a list with a column is not a placeholder list
+        assertEquals("select * from t where id in (?, b)", SqlFingerprint.of("select * from t where id in (1, b)"));
+    }
+
+    @Test
+    public void valuesRows() {
+        String one = SqlFingerprint.of("INSERT INTO t (id, name) VALUES (1, 'a')");
+        assertEquals("insert into t (id, name) values (?)", one);
+        assertEquals(one, SqlFingerprint.of("INSERT INTO t (id, name) VALUES (1, 'a'), (2, 'b'), (3, 'c')"));
+        assertEquals(one, SqlFingerprint.of("insert into t (id, name) values (?, ?),(?, ?)"));
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.codeed.dbupgrader.utils;
+
+import io.github.codeed.dbupgrader.stats.*;
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DdlCoalescerTest {
+    private StatisticsTrackingConnection conn;
+    private DdlCoalescer coalescer;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        conn = new StatisticsTrackingConnection(DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID()
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE"));
+        coalescer = new DdlCoalescer();
+        conn.setDdlCoalescer(coalescer);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("create table accounts (id int primary key, name varchar(100))");
+        }
+        conn.getStats().reset();
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    /**
+     * A column added twice in the version and an existing column are skipped, the new column is added by one ALTER
+     */
+    @Test
+    public void duplicateColumnInVersion() throws SQLException {
+        assertTrue(SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column email varchar(100)"));
+        assertFalse(SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column name varchar(100)"));
+        assertTrue(SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column EMAIL varchar(200)"));
+        assertFalse(coalescer.isEmpty());
+        // queued, nothing runs until the flush
+        assertEquals(0, conn.getStats().getStatementCount());
+        assertFalse(SqlHelperUtils.columnExists(conn, "accounts", "email"));
+
+        SqlHelperUtils.flushDdl(conn);
+        assertTrue(coalescer.isEmpty());
+        assertEquals(1, conn.getStats().getStatementCount());
+        assertEquals(Arrays.asList("id", "name", "email"), columns());
+    }
+
+    /**
+     * The column added by a previous version exists when the next version adds it again
+     */
+    @Test
+    public void existingColumnOfPreviousVersion() throws SQLException {
+        SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column email varchar(100)");
+        SqlHelperUtils.flushDdl(conn);
+        conn.getStats().reset();
+
+        assertFalse(SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column email varchar(100)"));
+        assertTrue(coalescer.isEmpty());
+        SqlHelperUtils.flushDdl(conn);
+        assertEquals(0, conn.getStats().getStatementCount());
+        assertEquals(Arrays.asList("id", "name", "email"), columns());
+    }
+
+    /**
+     * The names of one table in other quotes or case are one table, its columns are added by one ALTER
+     */
+    @Test
+    public void tableNamesAreNormalized() throws SQLException {
+        assertTrue(SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column email varchar(100)"));
+        assertTrue(SqlHelperUtils.smartAddColumn(conn, "alter table `accounts` add column phone varchar(20)"));
+        assertTrue(SqlHelperUtils.smartAddColumn(conn, "alter table ACCOUNTS add column city varchar(50)"));
+        SqlHelperUtils.flushDdl(conn);
+        assertEquals(1, conn.getStats().getStatementCount());
+        assertEquals(Arrays.asList("id", "name", "email", "phone", "city"), columns());
+    }
+
+    @Test
+    public void clearDropsQueuedColumns() throws SQLException {
+        SqlHelperUtils.smartAddColumn(conn, "alter table accounts add column email varchar(100)");
+        coalescer.clear();
+        SqlHelperUtils.flushDdl(conn);
+        assertEquals(0, conn.getStats().getStatementCount());
+        assertEquals(Arrays.asList("id", "name"), columns());
+    }
+
+    private List<String> columns() throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (ResultSet rs = conn.getMetaData().getColumns(conn.getCatalog(), null, "accounts", "%")) {
+            while (rs.next()) {
+                columns.add(rs.getString("COLUMN_NAME").toLowerCase());
+            }
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,113 @@
+package io.github.codeed.dbupgrader.utils;
+
+import org.junit.jupiter.api.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The policy only changes how the DDL runs on mysql, so the h2 connection is presented as mysql, and its DDL times out
+ * waiting for the table lock as many times as the test asks.
+ */
+public class DdlExecutionPolicyTest {
+    private static final String DDL = "create table accounts (id int primary key)";
+
+    private Connection conn;
+    private final List<String> executed = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:" + UUID.randomUUID() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void lockWaitTimeoutIsRetried() throws SQLException {
+        new DdlExecutionPolicy(5, 60_000, false).execute(mysql(1), DDL);
+        assertEquals(Arrays.asList("SET SESSION lock_wait_timeout = 5", DDL, DDL, "SET SESSION lock_wait_timeout = 50"), executed);
+        assertTrue(SqlHelperUtils.tableExists(conn, "accounts"));
+    }
+
+    /**
+     * The last timeout is thrown when the next retry would be after the budget, the session timeout is restored
+     */
+    @Test
+    public void givesUpAfterTheRetryBudget() {
+        SQLException e = assertThrows(SQLException.class, () -> new DdlExecutionPolicy(5, 0, false).execute(mysql(Integer.MAX_VALUE), DDL));
+        assertEquals(1205, e.getErrorCode());
+        assertEquals(Arrays.asList("SET SESSION lock_wait_timeout = 5", DDL, "SET SESSION lock_wait_timeout = 50"), executed);
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws SQLException {
+        SqlHelperUtils.executeUpdate(conn, DDL);
+        SQLException e = assertThrows(SQLException.class, () -> new DdlExecutionPolicy(5, 60_000, false).execute(mysql(0), DDL));
+        assertNotNull(e.getMessage());
+        assertEquals(Arrays.asList("SET SESSION lock_wait_timeout = 5", DDL, "SET SESSION lock_wait_timeout = 50"), executed);
+    }
+
+    @Test
+    public void otherDatabasesRunTheDdlAsIs() throws SQLException {
+        new DdlExecutionPolicy(5, 60_000, false).execute(conn, DDL);
+        assertTrue(SqlHelperUtils.tableExists(conn, "accounts"));
+    }
+
+    /**
+     * @param timeouts how many times the DDL times out before it runs
+     */
+    private Connection mysql(int timeouts) {
+        AtomicInteger remaining = new AtomicInteger(timeouts);
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getMetaData":
+                    DatabaseMetaData metaData = conn.getMetaData();
+                    return proxy(DatabaseMetaData.class, (p, m, a) -> "getDatabaseProductName".equals(m.getName()) ? "MySQL"
+                            : invoke(metaData, m, a));
+                case "prepareStatement":
+                    // h2 has no lock_wait_timeout
+                    return "select @@session.lock_wait_timeout".equals(args[0]) ? conn.prepareStatement("select 50")
+                            : invoke(conn, method, args);
+                case "createStatement":
+                    Statement stmt = conn.createStatement();
+                    return proxy(Statement.class, (p, m, a) -> {
+                        if (!"execute".equals(m.getName())) {
+                            return invoke(stmt, m, a);
+                        }
+                        String sql = (String) a[0];
+                        executed.add(sql);
+                        if (sql.startsWith("SET SESSION")) {
+                            return false;
+                        }
+                        if (remaining.getAndDecrement() > 0) {
+                            throw new SQLException("Lock wait timeout exceeded; try restarting transaction", "HY000", 1205);
+                        }
+                        return invoke(stmt, m, a);
+                    });
+                default:
+                    return invoke(conn, method, args);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(DdlExecutionPolicyTest.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
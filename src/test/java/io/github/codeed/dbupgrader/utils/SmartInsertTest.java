@@ -0,0 +1,138 @@
+package io.github.codeed.dbupgrader.utils;
+
+import org.junit.jupiter.api.*;
+
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A multi-row smart insert checks the keys of all rows at once, it must leave the same rows as inserting them one by one.
+ * The rows of each case are inserted by one statement into {@code set_based}, and by one statement each into {@code row_by_row},
+ * which is the row by row check.
+ */
+public class SmartInsertTest {
+    private Connection conn;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        conn = DriverManager.getConnection("jdbc:h2:mem:smartinsert" + UUID.randomUUID().toString().replace("-", "")
+                + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE");
+        // the smart insert qualifies the table by the catalog, which is a schema name for h2
+        execute("create schema " + conn.getCatalog());
+        execute("set schema " + conn.getCatalog());
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        conn.close();
+    }
+
+    @Test
+    public void duplicateKeysInOneStatement() throws SQLException {
+        assertSameAsRowByRow("create table %s (id int primary key, name varchar(100))", "id, name",
+                Collections.emptyList(), "(1, 'a')", "(2, 'b')", "(1, 'c')", "(2, 'd')");
+        assertEquals(Arrays.asList(Arrays.asList(1, "a"), Arrays.asList(2, "b")), rows("set_based", "id"));
+    }
+
+    @Test
+    public void existingKeys() throws SQLException {
+        assertSameAsRowByRow("create table %s (id int primary key, name varchar(100))", "id, name",
+                Arrays.asList("(2, 'old')", "(4, 'old')"), "(1, 'a')", "(2, 'b')", "(3, 'c')", "(4, 'd')");
+        assertEquals(Arrays.asList(Arrays.asList(1, "a"), Arrays.asList(2, "old"), Arrays.asList(3, "c"), Arrays.asList(4, "old")),
+                rows("set_based", "id"));
+    }
+
+    @Test
+    public void allKeysExist() throws SQLException {
+        assertSameAsRowByRow("create table %s (id int primary key, name varchar(100))", "id, name",
+                Arrays.asList("(1, 'old')", "(2, 'old')"), "(1, 'a')", "(2, 'b')");
+        assertFalse(SqlHelperUtils.smartInsertWithPrimaryKeySet(conn, "insert into set_based (id, name) values (1, 'a'), (2, 'b')"));
+    }
+
+    @Test
+    public void compositeKeys() throws SQLException {
+        assertSameAsRowByRow("create table %s (tenant varchar(10), code int, name varchar(100), primary key (tenant, code))",
+                "tenant, code, name", Collections.singletonList("('t1', 1, 'old')"),
+                "('t1', 1, 'a')", "('t1', 2, 'b')", "('t2', 1, 'c')", "('t2', 1, 'd')", "('t2', 2, 'e')");
+        assertEquals(Arrays.asList(Arrays.asList("t1", 1, "old"), Arrays.asList("t1", 2, "b"), Arrays.asList("t2", 1, "c"),
+                Arrays.asList("t2", 2, "e")), rows("set_based", "tenant, code"));
+    }
+
+    /**
+     * A key with NULL can't be checked, the statement fails before any row is inserted
+     */
+    @Test
+    public void nullKeys() throws SQLException {
+        execute("create table set_based (id int, name varchar(100))");
+        assertThrows(SQLException.class, () -> SqlHelperUtils.smartInsertWithUniqueColumns(conn,
+                "insert into set_based (id, name) values (1, 'a'), (null, 'b'), (3, 'c')", "id"));
+        assertThrows(SQLException.class, () -> SqlHelperUtils.smartInsertWithUniqueColumns(conn,
+                "insert into set_based (id, name) values (null, 'b')", "id"));
+        assertEquals(Collections.emptyList(), rows("set_based", "id"));
+    }
+
+    /**
+     * 'ABC' and 'Abc' may be one key for the database, the rows are checked one by one
+     */
+    @Test
+    public void mixedCaseStrings() throws SQLException {
+        assertSameAsRowByRow("create table %s (code varchar(10) primary key, name varchar(100))", "code, name",
+                Collections.singletonList("('abc', 'old')"), "('ABC', 'a')", "('abc', 'b')", "('Abc', 'c')", "('def', 'd')");
+        assertEquals(Arrays.asList(Arrays.asList("ABC", "a"), Arrays.asList("Abc", "c"), Arrays.asList("abc", "old"),
+                Arrays.asList("def", "d")), rows("set_based", "code"));
+    }
+
+    @Test
+    public void mixedCaseStringsIgnoreCase() throws SQLException {
+        assertSameAsRowByRow("create table %s (code varchar_ignorecase(10) primary key, name varchar(100))", "code, name",
+                Collections.singletonList("('abc', 'old')"), "('ABC', 'a')", "('Abc', 'b')", "('def', 'c')");
+        assertEquals(Arrays.asList(Arrays.asList("abc", "old"), Arrays.asList("def", "c")), rows("set_based", "code"));
+    }
+
+    /**
+     * Only the existing row differs in case, the database matches a key which is different in java
+     */
+    @Test
+    public void existingKeyOfOtherCase() throws SQLException {
+        assertSameAsRowByRow("create table %s (code varchar_ignorecase(10) primary key, name varchar(100))", "code, name",
+                Collections.singletonList("('abc', 'old')"), "('ABC', 'a')", "('def', 'b')");
+        assertEquals(Arrays.asList(Arrays.asList("abc", "old"), Arrays.asList("def", "b")), rows("set_based", "code"));
+    }
+
+    private void assertSameAsRowByRow(String createTableSql, String columns, List<String> existingRows, String... rows)
+            throws SQLException {
+        for (String table : new String[]{"set_based", "row_by_row"}) {
+            execute(String.format(createTableSql, table));
+            for (String row : existingRows) {
+                execute("insert into " + table + " (" + columns + ") values " + row);
+            }
+        }
+        boolean inserted = SqlHelperUtils.smartInsertWithPrimaryKeySet(conn,
+                "insert into set_based (" + columns + ") values " + String.join(", ", rows));
+        boolean insertedRowByRow = false;
+        for (String row : rows) {
+            insertedRowByRow |= SqlHelperUtils.smartInsertWithPrimaryKeySet(conn, "insert into row_by_row (" + columns + ") values " + row);
+        }
+        assertEquals(insertedRowByRow, inserted);
+        String orderBy = columns.substring(0, columns.lastIndexOf(','));
+        assertEquals(rows("row_by_row", orderBy), rows("set_based", orderBy));
+    }
+
+    private List<List<Object>> rows(String table, String orderBy) throws SQLException {
+        return SqlHelperUtils.queryForList(conn, "select * from " + table + " order by " + orderBy, rs -> {
+            List<Object> row = new ArrayList<>();
+            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                row.add(rs.getObject(i));
+            }
+            return row;
+        });
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.github.codeed.dbupgrader.utils;
+
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TopologicalSortTest {
+
+    @Test
+    public void independentNodesAreSortedByName() {
+        Map<String, Set<String>> graph = new HashMap<>();
+        for (String node : new String[]{"d", "b", "a", "c"}) {
+            graph.put(node, new HashSet<>());
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d"), TopologicalSort.sort(graph));
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b", "c", "d")), TopologicalSort.levels(graph));
+    }
+
+    @Test
+    public void dependenciesComeFirst() {
+        Map<String, Set<String>> graph = new HashMap<>();
+        graph.put("a", new HashSet<>(Collections.singletonList("c")));
+        graph.put("b", new HashSet<>());
+        graph.put("c", new HashSet<>(Collections.singletonList("b")));
+        graph.put("d", new HashSet<>(Arrays.asList("b", "missing")));
+
+        assertEquals(Arrays.asList("b", "c", "a", "d"), TopologicalSort.sort(graph));
+        assertEquals(Arrays.asList(Collections.singletonList("b"), Arrays.asList("c", "d"), Collections.singletonList("a")),
+                TopologicalSort.levels(graph));
+    }
+
+    @Test
+    public void cycleIsReported() {
+        Map<String, Set<String>> graph = new HashMap<>();
+        graph.put("a", new HashSet<>());
+        graph.put("b", new HashSet<>(Collections.singletonList("c")));
+        graph.put("c", new HashSet<>(Collections.singletonList("d")));
+        graph.put("d", new HashSet<>(Collections.singletonList("b")));
+        graph.put("e", new HashSet<>(Collections.singletonList("d")));
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> TopologicalSort.sort(graph));
+        assertTrue(e.getMessage().contains("b -> c -> d -> b"), e.getMessage());
+        e = assertThrows(IllegalArgumentException.class, () -> TopologicalSort.levels(graph));
+        assertTrue(e.getMessage().contains("b -> c -> d -> b"), e.getMessage());
+    }
+
+    @Test
+    public void selfDependencyIsACycle() {
+        Map<String, Set<String>> graph = new HashMap<>();
+        graph.put("a", new HashSet<>(Collections.singletonList("a")));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> TopologicalSort.sort(graph));
+        assertTrue(e.getMessage().contains("a -> a"), e.getMessage());
+    }
+
+    @Test
+    public void longChain() {
+        int size = 20_000;
+        Map<String, Set<String>> graph = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Set<String> dependencies = new HashSet<>();
+            if (i > 0) {
+                dependencies.add(String.format("n%05d", i - 1));
+            }
+            graph.put(String.format("n%05d", i), dependencies);
+        }
+        List<String> sorted = TopologicalSort.sort(graph);
+        assertEquals(size, sorted.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(String.format("n%05d", i), sorted.get(i));
+        }
+        assertEquals(size, TopologicalSort.levels(graph).size());
+    }
+}